@@ -0,0 +1,169 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Find files in a backup without asking Manifest.db. A backup file is
+ * named after the SHA-1 of "domain-relativePath" and lives in the
+ * directory named after the first two characters of that hash, so
+ * anything whose domain and path are known can be found with one hash
+ * and one stat.
+ *
+ * Known files are kept in a registry by name. The support databases
+ * from FilePairManager are always there; more can be added in
+ * ~/.iExtractor/artifacts.properties (or -DiExtractor.artifacts=file),
+ * one per line:
+ *
+ * notes = AppDomainGroup-group.com.apple.notes, NoteStore.sqlite
+ *
+ * The domain ends at the first comma, everything after it is the path.
+ */
+public final class BackupFileResolver {
+
+	/*
+	 * Filled on first use. FilePairManager hashes its own entries with
+	 * fileID() while it is initialized, so this must not be built then.
+	 */
+	private static final class Registry {
+		private static final Map<String, Artifact> ARTIFACTS =
+				new ConcurrentHashMap<>();
+
+		static {
+			for (FilePairManager pair : FilePairManager.values()) {
+				if (pair.getDomain() != null) {
+					ARTIFACTS.put(pair.name().toLowerCase(), new Artifact(
+							pair.getDomain(), pair.getRelativePath()));
+				}
+			}
+			Path config = Paths.get(System.getProperty(
+					"iExtractor.artifacts", Paths.get(System.getProperty(
+					"user.home"), ".iExtractor", "artifacts.properties")
+					.toString()));
+			if (Files.isRegularFile(config)) {
+				load(config);
+			}
+		}
+	}
+
+	private BackupFileResolver() {
+	}
+
+	/* The backup fileID of domain/relativePath. */
+	public static String fileID(String domain, String relativePath) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return KeyBag.bytesToHex(sha1.digest((domain + "-"
+					+ relativePath).getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new ExceptionManager("SHA-1 is not available", e, true);
+		}
+	}
+
+	/* Where a fileID is stored in the backup, present or not. */
+	public static Path getBackupPath(Path backupLocation, String fileID) {
+		return backupLocation.resolve(fileID.substring(0, 2))
+				.resolve(fileID);
+	}
+
+	public static void register(String name, String domain,
+			String relativePath) {
+		Registry.ARTIFACTS.put(name, new Artifact(domain, relativePath));
+	}
+
+	/* Add (or replace) the artefacts listed in a properties file. */
+	public static void load(Path config) throws ExceptionManager {
+		Properties artifacts = new Properties();
+		try (Reader reader = Files.newBufferedReader(config)) {
+			artifacts.load(reader);
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to read " + config, e,
+					false);
+		}
+		for (String name : artifacts.stringPropertyNames()) {
+			String value = artifacts.getProperty(name);
+			int comma = value.indexOf(',');
+			if (comma < 1) {
+				ExceptionManager.logWarning("Ignoring artefact " + name
+						+ " in " + config + ", expected: domain, relativePath");
+				continue;
+			}
+			register(name, value.substring(0, comma).trim(),
+					value.substring(comma + 1).trim());
+		}
+	}
+
+	public static Set<String> getNames() {
+		return Set.copyOf(Registry.ARTIFACTS.keySet());
+	}
+
+	public static boolean isRegistered(String name) {
+		return Registry.ARTIFACTS.containsKey(name);
+	}
+
+	/* The fileID of a registered artefact. */
+	public static String getFileID(String name) throws ExceptionManager {
+		return lookup(name).fileID;
+	}
+
+	/*
+	 * The backup file of a registered artefact, or null if this backup
+	 * does not have it.
+	 */
+	public static Path resolve(Path backupLocation, String name)
+			throws ExceptionManager {
+		Path file = getBackupPath(backupLocation, lookup(name).fileID);
+		return Files.isRegularFile(file) ? file : null;
+	}
+
+	private static Artifact lookup(String name) throws ExceptionManager {
+		Artifact artifact = Registry.ARTIFACTS.get(name);
+		if (artifact == null) {
+			throw new ExceptionManager("Unknown backup artefact: " + name);
+		}
+		return artifact;
+	}
+
+	/* A domain and path with the fileID worked out once. */
+	private static final class Artifact {
+		private final String fileID;
+
+		Artifact(String domain, String relativePath) {
+			this.fileID = fileID(domain, relativePath);
+		}
+	}
+}
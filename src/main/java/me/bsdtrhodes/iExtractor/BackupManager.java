@@ -29,11 +29,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
@@ -51,6 +53,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
@@ -92,6 +95,15 @@ import javafx.stage.Stage;
  */
 public class BackupManager extends Phone {
 
+	/* The support databases decrypted before their parse jobs run. */
+	private static final List<FilePairManager> SUPPORT_DATABASES = List.of(
+			FilePairManager.CONTACTS, FilePairManager.MESSAGES,
+			FilePairManager.VOICEMAILS, FilePairManager.SAFARI,
+			FilePairManager.CALLS);
+
+	/* Decrypt job ids, offset by the ordinal of the database. */
+	private static final int DECRYPT_JOB = 100;
+
 	private Path backupLocation, restoreLocation;
 	private Phone iPhone = null;
 
@@ -99,7 +111,7 @@ public class BackupManager extends Phone {
     private Path manifestDBFile, decryptedDatabaseFile;
 
 	/* These lists are created by the manager from databases. */
-	private ArrayList<Media> MediaList = new ArrayList<>();
+	private ManifestTable MediaList = null;
 	private ArrayList<Contact> ContactList = new ArrayList<>();
 	private ArrayList<VoiceMail> VMailList = new ArrayList<>();
 	private ArrayList<Message> MessageList = new ArrayList<>();
@@ -113,6 +125,18 @@ public class BackupManager extends Phone {
 	/* Cleanup queue. */
 	private final CleanupManager cleanupManager;
 
+	/* Exact lookups in the Manifest, open while the extraction runs. */
+	private ManifestIndex manifestIndex = null;
+
+	/* Sizes and digests of everything we extract. */
+	private HashManifest hashManifest = null;
+	/* Lets an interrupted extraction pick up where it stopped. */
+	private ExtractionJournal journal = null;
+	/* One copy of each distinct file, when enabled. */
+	private ContentStore contentStore = null;
+	/* The TAR or ZIP everything goes into, null for loose files. */
+	private OutputSink outputSink = null;
+
 	/*
 	 * Is encrypted is true until we know otherwise; isLegit is only true
 	 * when instantiated from a good backup, allowing certain processes
@@ -173,20 +197,15 @@ public class BackupManager extends Phone {
 				+ " sure the restore directory is empty or the correct"
 				+ " location was selected. Exiting.");
 
-    /* Parse the property list files for the phone object. */
-    try {
-		this.infoPList = (NSDictionary)
-			PropertyListParser.parse(this.backupLocation
-			.resolve("info.plist").toFile());
-		this.manifestPList = (NSDictionary)
-			PropertyListParser.parse(this.backupLocation
-			.resolve("Manifest.plist").toFile());
-	} catch (ParserConfigurationException | ParseException | SAXException
-			| PropertyListFormatException
-			| IOException e) {
-		throw new ExceptionManager("Critical error reading primary files: ",
-				e, true);
-	}
+    /*
+     * Parse the property list files for the phone object. Normally the
+     * prefetcher did this while the backup was being picked, start()
+     * hands that one back.
+     */
+    BackupPrefetcher prefetch = BackupPrefetcher.start(this
+    		.backupLocation);
+	this.infoPList = prefetch.getInfoPList();
+	this.manifestPList = prefetch.getManifestPList();
 
     /*
 	 * Show a little "working" box.
@@ -208,7 +227,20 @@ public class BackupManager extends Phone {
             updateProgress(0, 1);
 
 	/* Set up a new iPhone. */
-	self.iPhone = new Phone(self.infoPList, self.manifestPList);
+	self.iPhone = prefetch.getPhone();
+	self.hashManifest = new HashManifest(self.restoreLocation);
+	self.journal = new ExtractionJournal(self.restoreLocation);
+	if (ContextManager.getDedupStore()) {
+		self.contentStore = new ContentStore(self.restoreLocation);
+		cleanupManager.markForClose(self.contentStore,
+				"the content store's references.csv");
+	}
+	/* Media can be extracted until we exit, so finish the archive then. */
+	self.outputSink = OutputSink.open(self.restoreLocation);
+	if (self.outputSink != null) {
+		cleanupManager.markForClose(self::closeOutput,
+				"the output archive");
+	}
 
 	if (iPhone.isEncrypted) {
 		/* Try to unlock the phone and process encrypted backup. */
@@ -232,45 +264,22 @@ public class BackupManager extends Phone {
 	}
 	updateProgress(0.50f, 1.0f);
 	try {
+		ThreadManager workers = new ThreadManager(6);
+		self.manifestIndex = new ManifestIndex(self.decryptedDatabaseFile);
 		if (iPhone.isEncrypted) {
 
-		/* Attempt to perform decryption activities */
-		EncryptedFile contactsDB = new
-				EncryptedFile(FilePairManager.CONTACTS
-				.getEncryptedPath(self.backupLocation),
-				self.decryptedDatabaseFile, self.iPhone);
-		contactsDB.extract(FilePairManager.CONTACTS
-				.getDecryptedPath(self.restoreLocation));
-
-		EncryptedFile txtMessagesDB = new
-			EncryptedFile(FilePairManager.MESSAGES
-				.getEncryptedPath(self.backupLocation),
-				self.decryptedDatabaseFile,
-				self.iPhone);
-		txtMessagesDB.extract(FilePairManager.MESSAGES
-				.getDecryptedPath(self.restoreLocation));
-
-		EncryptedFile voicemailsDB = new
-				EncryptedFile(FilePairManager.VOICEMAILS
-				.getEncryptedPath(self.backupLocation),
-				self.decryptedDatabaseFile,
-				self.iPhone);
-		voicemailsDB.extract(FilePairManager.VOICEMAILS
-				.getDecryptedPath(self.restoreLocation));
-
-		EncryptedFile safariHistoryDB = new
-				EncryptedFile(FilePairManager.SAFARI
-				.getEncryptedPath(self.backupLocation),
-				self.decryptedDatabaseFile, self.iPhone);
-		safariHistoryDB.extract(FilePairManager.SAFARI
-				.getDecryptedPath(self.restoreLocation));
-
-		EncryptedFile callLog = new
-				EncryptedFile(FilePairManager.CALLS
-				.getEncryptedPath(self.backupLocation),
-				self.decryptedDatabaseFile, self.iPhone);
-		callLog.extract(FilePairManager.CALLS
-				.getDecryptedPath(self.restoreLocation));
+		/*
+		 * Look all of the databases up in the Manifest index, then
+		 * decrypt each one on its own worker. The parse jobs below
+		 * only wait on their own database.
+		 */
+		for (FilePairManager pair : SUPPORT_DATABASES) {
+			EncryptedFile database = new EncryptedFile(pair
+					.getEncryptedPath(self.backupLocation),
+					self.manifestIndex, self.iPhone);
+			workers.submitJob(() -> extractDatabase(database, pair),
+					DECRYPT_JOB + pair.ordinal());
+		}
 
 		/* XXX: Get XML data for the report. - Move to reporting.
 		File myPlist = new File(backupLocation + File.separator
@@ -292,38 +301,6 @@ public class BackupManager extends Phone {
 			self.decryptedDatabaseFile = self.manifestDBFile;
 		}
 
-		/* Register files for cleanup */
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.CONTACTS
-			.getDecryptedPath(self.restoreLocation));
-		}
-
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.MESSAGES
-			.getDecryptedPath(self.restoreLocation));
-		}
-
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.VOICEMAILS
-			.getDecryptedPath(self.restoreLocation));
-		}
-
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.SAFARI
-			.getDecryptedPath(self.restoreLocation));
-		}
-
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.CALLS
-			.getDecryptedPath(self.restoreLocation));
-		}
-
-		/* Finally, register the main database (Manifest) for cleanup. */
-		if (! ContextManager.getDebug()) {
-			cleanupManager.markForCleanup(FilePairManager.MANIFEST
-			.getDecryptedPath(self.restoreLocation));
-		}
-
 		/* Create extraction directory hierarchy. */
 		self.createMediaHier();
 
@@ -335,7 +312,6 @@ public class BackupManager extends Phone {
 		 * no read lock should be needed here IIRC.
 		 */
 		try {
-			ThreadManager workers = new ThreadManager(6);
 			/* Create and write contact list to file. */
 			Runnable contactTask = () -> {
 				try {
@@ -356,7 +332,8 @@ public class BackupManager extends Phone {
 					}
 				}
 			};
-			workers.submitJob(contactTask, 0);
+			submitParseJob(workers, contactTask, 0,
+					FilePairManager.CONTACTS);
 
 			/* Create and write call history to file. */
 			Runnable callHistoryTask = () -> {
@@ -378,7 +355,8 @@ public class BackupManager extends Phone {
 					}
 				}
 			};
-			workers.submitJob(callHistoryTask, 1);
+			submitParseJob(workers, callHistoryTask, 1,
+					FilePairManager.CALLS);
 
 			/* Create and write message history to file. */
 			Runnable messageHistoryTask = () -> {
@@ -400,7 +378,8 @@ public class BackupManager extends Phone {
 					}
 				}
 			};
-			workers.submitJob(messageHistoryTask, 2);
+			submitParseJob(workers, messageHistoryTask, 2,
+					FilePairManager.MESSAGES);
 			updateProgress(1.0f, 1.0f);
 
 			/* Create and write the voice mail information to file. */
@@ -424,7 +403,8 @@ public class BackupManager extends Phone {
 					}
 				}
 			};
-			workers.submitJob(vmailTask, 3);
+			submitParseJob(workers, vmailTask, 3,
+					FilePairManager.VOICEMAILS);
 
 			/*
 			 * Write Safari history to file (if it exists - it was created
@@ -450,18 +430,59 @@ public class BackupManager extends Phone {
 						}
 					}
 				};
-				workers.submitJob(safariTask, 4);
+				submitParseJob(workers, safariTask, 4,
+						FilePairManager.SAFARI);
 			}
 
-			/* Wait about a minute for all shutdown. */
+			/*
+			 * Wait for every database and its parse job, then wait about a
+			 * minute for all shutdown.
+			 */
+			Map<Integer, Throwable> failedJobs = workers.awaitJobs();
 			workers.shutdown();
 			workers.awaitTermination(30, TimeUnit.SECONDS);
+			self.manifestIndex.close();
+
+			/* Register files for cleanup */
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.CONTACTS
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.MESSAGES
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.VOICEMAILS
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.SAFARI
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.CALLS
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			/* Finally, register the main database (Manifest) for cleanup. */
+			if (! ContextManager.getDebug()) {
+				cleanupManager.markForCleanup(FilePairManager.MANIFEST
+				.getDecryptedPath(self.restoreLocation));
+			}
+
+			/* A database that failed to decrypt had its report skipped. */
+			self.checkDatabaseJobs(failedJobs);
 
 		/* If reporting is set, do the reporting here. */
 		if (self.doReporting) {
 			Path reportFName = restoreLocation.resolve("PhoneReport.html");
 			ReportManager phoneReport = new ReportManager(reportFName,
-					iPhone);
+					iPhone, self.outputSink);
 			phoneReport.processMessages(MessageList);
 		}
 
@@ -517,18 +538,20 @@ public class BackupManager extends Phone {
 	        			+ "encrypted but the keybag is empty");
 	        }
 
-	        byte[] manifestKey = new byte[this.iPhone.manifestKey.length() - 4];
-	        ByteBuffer manifestKeyBuffer =
-	        	ByteBuffer.wrap(this.iPhone.manifestKey.bytes());
-
-	        int manifestClass =
-	        	manifestKeyBuffer.order(ByteOrder.LITTLE_ENDIAN).getInt();
-	        manifestKeyBuffer.order(ByteOrder.BIG_ENDIAN).get(manifestKey);
+	        byte[] manifestKey = getManifestKey();
+	        int manifestClass = getManifestClass();
 
 	        /* Try to decrypt the Manifest.db file if encrypted. */
 	        try {
 	        	this.decryptedDatabaseFile = FilePairManager.MANIFEST
 	        			.getDecryptedPath(this.backupLocation);
+	        	if (ContextManager.getInMemoryDatabases()) {
+	        		DatabaseFileManager.loadInMemory(FilePairManager.MANIFEST
+	        			.getDecryptedPath(this.restoreLocation),
+	        			this.iPhone.getKeyBag().get().openChannel(
+	        			manifestClass, manifestKey, this.manifestDBFile, -1L));
+	        		return;
+	        	}
 	            this.iPhone.getKeyBag().get().decryptFile(manifestClass,
 	            	manifestKey, this.manifestDBFile,
 	            	FilePairManager.MANIFEST
@@ -539,11 +562,102 @@ public class BackupManager extends Phone {
 	        }
 	    }
 
+	    /* ManifestKey is a little endian protection class and the key. */
+	    private int getManifestClass() {
+	    	return ByteBuffer.wrap(this.iPhone.manifestKey.bytes())
+	    		.order(ByteOrder.LITTLE_ENDIAN).getInt();
+	    }
+
+	    private byte[] getManifestKey() {
+	        byte[] manifestKey = new byte[this.iPhone.manifestKey.length() - 4];
+	        ByteBuffer.wrap(this.iPhone.manifestKey.bytes(), 4,
+	        	manifestKey.length).get(manifestKey);
+	        return manifestKey;
+	    }
+
+	    /* Do the unlocked class keys open the Manifest.db header? */
+	    private boolean manifestUnlocks() throws ExceptionManager,
+	    	IOException {
+	    	return this.iPhone.getKeyBag().get().checkManifest(
+	    		getManifestClass(), getManifestKey(), this.manifestDBFile);
+	    }
+
+	    /*
+	     * Start a parse job as soon as its database is ready. Unencrypted
+	     * backups already have every database copied, so it starts now.
+	     */
+	    private void submitParseJob(ThreadManager workers, Runnable job,
+	    	int jid, FilePairManager pair) {
+	    	if (this.iPhone.isEncrypted) {
+	    		workers.submitJob(job, jid, DECRYPT_JOB + pair.ordinal());
+	    	} else {
+	    		workers.submitJob(job, jid);
+	    	}
+	    }
+
+	    /*
+	     * Name every support database whose decrypt job failed, so the
+	     * missing reports are not mistaken for an empty phone.
+	     */
+	    private void checkDatabaseJobs(Map<Integer, Throwable> failedJobs)
+	    	throws ExceptionManager {
+	    	List<String> failed = new ArrayList<>();
+	    	Throwable cause = null;
+	    	for (FilePairManager pair : SUPPORT_DATABASES) {
+	    		Throwable e = failedJobs.get(DECRYPT_JOB + pair.ordinal());
+	    		if (e != null) {
+	    			failed.add(pair.getRelativePath());
+	    			cause = (cause == null) ? e : cause;
+	    		}
+	    	}
+	    	if (cause != null) {
+	    		throw new ExceptionManager("Unable to decrypt "
+	    			+ String.join(", ", failed) + ", the reports from "
+	    			+ (failed.size() == 1 ? "it" : "them") + " were skipped",
+	    			cause, false);
+	    	}
+	    }
+
+	    /*
+	     * Decrypt one of the support databases, either to the restore
+	     * directory or straight into memory.
+	     */
+	    private void extractDatabase(EncryptedFile database,
+	    	FilePairManager pair) throws ExceptionManager {
+	    	Path decrypted = pair.getDecryptedPath(this.restoreLocation);
+	    	if (ContextManager.getInMemoryDatabases()) {
+	    		DatabaseFileManager.loadInMemory(decrypted,
+	    			database.openChannel());
+	    	} else {
+	    		database.extract(decrypted);
+	    	}
+	    }
+
 	    private boolean tryUnlock() throws ExceptionManager, IOException {
 	        try {
-	        	Optional<String> response = doRetPassword();
-	        	String password = response.get();
-	            iPhone.getKeyBag().get().unlock(password);
+	        	KeyBag keyBag = iPhone.getKeyBag().get();
+	        	/* A backup opened before may not need the password. */
+	        	boolean unlocked = ContextManager.getKeyCache()
+	        			&& keyBag.unlockFromCache() && manifestUnlocks();
+
+	        	/*
+	        	 * A wrong password fails the AESWrap check, or at worst the
+	        	 * SQLite header check, so ask again rather than decrypting
+	        	 * the whole Manifest into garbage.
+	        	 */
+	        	String header = null;
+	        	while (! unlocked) {
+	        		Optional<String> response = doRetPassword(header);
+	        		String password = response.get();
+	        		try {
+	        			keyBag.unlock(password);
+	        			unlocked = manifestUnlocks();
+	        		} catch (InvalidKeyException e) {
+	        			unlocked = false;
+	        		}
+	        		header = "That password did not unlock the backup,"
+	        				+ " please try again.";
+	        	}
 	            decryptDatabase();
 	            return true;
 	        } catch (InvalidKeyException e) {
@@ -573,6 +687,8 @@ public class BackupManager extends Phone {
     	    /* Progress spinner. It shows up on the pane which looks nice. */
     	    ProgressIndicator imgSpin = new ProgressIndicator();
     	    imgSpin.setVisible(false);
+    	    /* Files, bytes and speed of the running extraction. */
+    	    Label imgStatus = new Label();
 
     	    /* TilePane for button placement. */
     	    TilePane content = new TilePane();
@@ -583,15 +699,21 @@ public class BackupManager extends Phone {
     	    /* Create an arraylist of buttons. Buttons!! :) */
     	    ArrayList<Button> buttonlist = new ArrayList<>();
 
-    	    for (int i = 0; i < this.getMediaHier().size(); i++) {
-    	        Path realMediaDir = this.getMediaHier().get(i).getFileName();
+    	    /* One Manifest query for the list, not two per directory. */
+    	    ArrayList<Path> mediaHier = this.getMediaHier();
+    	    for (int i = 0; i < mediaHier.size(); i++) {
+    	        Path realMediaDir = mediaHier.get(i).getFileName();
 
     	        /* Skip the DCIM directory entry */
     	        if (realMediaDir.toString().equals("DCIM")) {
     	            continue;
     	        }
 
-    	        Button entry = new Button(realMediaDir.toString());
+    	        /* Show what the button is going to extract. */
+    	        String dirName = realMediaDir.toString();
+    	        Button entry = new Button(dirName + "\n" + MediaList
+    	        	.getDirectoryCount(dirName) + " files, " + MediaExtractor
+    	        	.formatBytes(MediaList.getDirectoryBytes(dirName)));
     	        entry.setOnAction(new EventHandler<ActionEvent>() {
     	            @Override
     	            public void handle(ActionEvent event) {
@@ -601,10 +723,17 @@ public class BackupManager extends Phone {
     	                    @Override
     	                    protected Void call() throws ExceptionManager {
     	                        copyMediaByDir(MediaList,
-    	                        		realMediaDir.toString());
+    	                        		realMediaDir.toString(), progress -> {
+    	                        	updateProgress(progress.getBytesDone(),
+    	                        		progress.getBytesTotal());
+    	                        	updateMessage(progress.getSummary());
+    	                        });
     	                        return null;
     	                    }
     	                };
+    	                imgSpin.progressProperty().bind(task
+    	                	.progressProperty());
+    	                imgStatus.textProperty().bind(task.messageProperty());
     	                /* On success: disable the button, color it green. */
     	                task.setOnSucceeded(e -> {
     	                	imgSpin.setVisible(false);
@@ -637,10 +766,16 @@ public class BackupManager extends Phone {
     	            Task<Void> task = new Task<>() {
     	                @Override
     	                protected Void call() throws ExceptionManager {
-    	                    copyAllMedia(MediaList);
+    	                    copyAllMedia(MediaList, progress -> {
+    	                    	updateProgress(progress.getBytesDone(),
+    	                    		progress.getBytesTotal());
+    	                    	updateMessage(progress.getSummary());
+    	                    });
     	                    return null;
     	                }
     	            };
+    	            imgSpin.progressProperty().bind(task.progressProperty());
+    	            imgStatus.textProperty().bind(task.messageProperty());
     	            /* On success: disable the button, color it green. */
     	            task.setOnSucceeded(e -> {
     	            	imgSpin.setVisible(false);
@@ -664,7 +799,7 @@ public class BackupManager extends Phone {
     	    content.setAlignment(Pos.CENTER_LEFT);
 
     	    /* Put everything in a nice VBox for our end user. */
-    	    VBox fullLayout = new VBox(20, content, imgSpin);
+    	    VBox fullLayout = new VBox(20, content, imgSpin, imgStatus);
     	    fullLayout.setPadding(new Insets(15));
     	    fullLayout.setAlignment(Pos.CENTER);
 
@@ -672,14 +807,14 @@ public class BackupManager extends Phone {
     	    dialog.showAndWait();
     	}
 
-    	private Optional<String> doRetPassword() {
+    	private Optional<String> doRetPassword(String header) {
     	    final CompletableFuture<Optional<String>> result =
     	    		new CompletableFuture<>();
 
     	    Platform.runLater(() -> {
     	        Dialog<String> passWindow = new Dialog<>();
-    	        passWindow.setHeaderText("This backup is encrypted and"
-    	        		+ " needs a password.");
+    	        passWindow.setHeaderText(header != null ? header
+    	        		: "This backup is encrypted and needs a password.");
     	        passWindow.setTitle("Backup Password");
     	        passWindow.getDialogPane().getButtonTypes()
     	        	.addAll(ButtonType.OK, ButtonType.CANCEL);
@@ -797,45 +932,26 @@ public class BackupManager extends Phone {
 * Create the media items list.                                               *
 ******************************************************************************
 */
-    private ArrayList<Media> createMediaArray() throws SQLException,
+    private ManifestTable createMediaArray() throws SQLException,
     	ExceptionManager {
     	/* Use the internal version of this file to avoid additional IO */
-    	ArrayList<Media> mList = new ArrayList<>();
-    	NSDictionary dataBlob = null;
-
-    	try (DatabaseFileManager dbMGR = new DatabaseFileManager(this
-    				.decryptedDatabaseFile);
-    		Connection conn = dbMGR.getConnection();
-			/* Now we have a database connection, build media list. */
-			PreparedStatement stmt0 =
-					conn.prepareStatement(DatabaseQueriesManager
-					.getMediaFilesQuery());
-			ResultSet results0 = stmt0.executeQuery()) {
-
-    		/* If either are null, we have an issue (DB corruption?) */
-			while (results0.next()) {
-				/* Get data by column name. */
-				String fileID = results0.getString("fileID");
-				Path realFile = (this.backupLocation).resolve(fileID
-						.substring(0,2)).resolve(fileID);
-				String relativePath = results0.getString("relativePath");
-				try {
-					dataBlob = (NSDictionary)
-						PropertyListParser.parse(results0.getBinaryStream(4));
-				} catch (IOException | PropertyListFormatException |
-					ParseException | ParserConfigurationException
-					| SAXException e) {
-					throw new ExceptionManager("Unable to get file properties"
-							+ " for file decryption: ", e, true);
-				}
-				EncryptedFile mediaFile = new EncryptedFile(realFile,
-						this.iPhone, dataBlob);
-				/* Do not hash a directory (they do not exist on disk). */
-				Media temp = new Media(fileID, relativePath,
-					this.backupLocation, this.restoreLocation, mediaFile);
-				mList.add(temp);
-			}
-			results0.close();
+    	ManifestTable mList = new ManifestTable(this.backupLocation,
+    		this.restoreLocation, this.iPhone);
+
+    	/*
+    	 * Camera roll files, skipping metadata and thumbnail files. The
+    	 * rows are added as they come off the cursor.
+    	 */
+    	try (Stream<ManifestEntry> media = new ManifestCursor(this
+    			.decryptedDatabaseFile).domain("CameraRollDomain")
+    			.pathLike("%DCIM%").pathNotLike("%Thumbnails%")
+    			.pathNotLike("%Adjustments%").pathNotLike("%THM")
+    			.pathNotLike("%PhotoData%").flags(1).stream()) {
+    		media.forEachOrdered(entry -> mList.add(entry.getFileID(),
+    			entry.getRelativePath(), entry.getFlags(),
+    			entry.getFileBlob()));
+		} catch (ExceptionManager e) {
+			throw e;
 		} catch (Exception e) {
 			/* Pass this exception to the ManagerException class. */
 			throw new ExceptionManager("Encountered a database error while"
@@ -940,17 +1056,13 @@ public class BackupManager extends Phone {
 		try (DatabaseFileManager vmdbMGR = new DatabaseFileManager(
 					FilePairManager.VOICEMAILS.getDecryptedPath(
 					this.restoreLocation));
-				DatabaseFileManager dbMGR = new DatabaseFileManager(
-					this.decryptedDatabaseFile);
 				Connection vdbConn = vmdbMGR.getConnection();
-				Connection manConn = dbMGR.getConnection();
 				PreparedStatement vMailstmt =
 						vdbConn.prepareStatement(DatabaseQueriesManager
 						.getVMailDataQuery());
 				ResultSet vMailData = vMailstmt.executeQuery()) {
 
 			while (vMailData.next()) {
-				NSDictionary dataBlob = null;
 				/* ROWID contains the vmail file name. */
 				String RowID = Optional.ofNullable(vMailData
 						.getString("ROWID")).orElse("Unknown");
@@ -973,45 +1085,74 @@ public class BackupManager extends Phone {
 
 				/* Get the file information (id/path) */
 				/* ID should be changed to int? */
-				try (PreparedStatement vFile =
-					manConn.prepareStatement(DatabaseQueriesManager
-							.getVMailFileQuery(RowID));
-				ResultSet vFileData = vFile.executeQuery()) {
-				String vfileID = vFileData.getString("fileID");
-				
-					dataBlob = (NSDictionary)
-						PropertyListParser.parse(vFileData
-						.getBinaryStream(2));
+				try {
+				String vfileID = BackupFileResolver.fileID("HomeDomain",
+						"Library/Voicemail/" + RowID + ".amr");
 
 				/* Create a decent filename string. */
 				String newFileName = Sender + "_" + ArrivedTime + ".amr";
 				/* Copy the vmail file over to the extract directory. */
 				Path dstFile = this.restoreLocation.resolve("VoiceMails")
 						.resolve(newFileName);
-				Path srcFile = this.backupLocation.resolve(vfileID
-						.substring(0,2)).resolve(vfileID);
+				Path srcFile = BackupFileResolver.getBackupPath(this
+						.backupLocation, vfileID);
+				if (! Files.isRegularFile(srcFile)) {
+					throw new IOException("Voicemail " + RowID + " is not"
+							+ " in the backup");
+				}
+
 
+				/* Extracted by an earlier run that did not finish. */
+				if (this.journal != null && this.journal.isDone(dstFile)) {
+					VoiceMail tmpVMail = new VoiceMail(RowID, AppleDate,
+						Sender, Expiration, TrashDT, Receiver, Arrived, Len,
+						this.journal.getMD5(dstFile));
+					vList.add(tmpVMail);
+					continue;
+				}
+				Files.deleteIfExists(dstFile);
 
-				/* Encrypted copy of files. */
+				/* Encrypted copy of files, hashed on the way out. */
+				FileDigests digests;
 				if (this.iPhone.isEncrypted) {
-					EncryptedFile vmailFile = new 
-						EncryptedFile(this.backupLocation
-						.resolve(vfileID.substring(0, 2)).resolve(vfileID),
-						this.iPhone, dataBlob);
-					vmailFile.extract(dstFile);
+					/* Only the wrapped key needs the Manifest. */
+					ManifestEntry vFileData = this.manifestIndex.find(
+						vfileID);
+					if (vFileData == null) {
+						throw new IOException("No Manifest entry for"
+							+ " voicemail " + RowID);
+					}
+					EncryptedFile vmailFile = new EncryptedFile(srcFile,
+						this.iPhone, vFileData);
+					if (this.contentStore != null) {
+						digests = this.contentStore.newDigests();
+						Path part = this.contentStore.newTemporary();
+						try {
+							vmailFile.extract(part, digests);
+							this.contentStore.commit(part, digests, dstFile);
+						} finally {
+							Files.deleteIfExists(part);
+						}
+					} else {
+						digests = FileDigests.create();
+						vmailFile.extract(dstFile, digests);
+					}
+					recordHashes(dstFile, digests);
 				} else {
 					/* Unencrypted extraction of files. */
-					copyMediaByFile(srcFile, dstFile);
+					digests = copyMediaByFile(srcFile, dstFile);
+				}
+				if (this.journal != null && digests != null) {
+					this.journal.record(dstFile, digests);
 				}
 
-				String MD5 = super.getFileHash("MD5", srcFile.toString());
+				String MD5 = (digests == null || digests.get("MD5") == null)
+					? "Unknown" : digests.get("MD5");
 				VoiceMail tmpVMail = new VoiceMail(RowID, AppleDate, Sender,
 					Expiration, TrashDT, Receiver, Arrived, Len, MD5);
 				vList.add(tmpVMail);
 			
-			} catch (IOException | PropertyListFormatException |
-					ParseException | ParserConfigurationException
-					| SAXException e) {
+			} catch (IOException e) {
 					throw new ExceptionManager("Error in voicemail extraction",
 							e, false);
 				}
@@ -1027,9 +1168,8 @@ public class BackupManager extends Phone {
 
 	private void writeVMailWeb(ArrayList<VoiceMail> vList) throws
 		ExceptionManager, IOException {
-		try (BufferedWriter webFile = Files.newBufferedWriter(FilePairManager
-				.VOICEMAILSHTML.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter webFile = openReport(FilePairManager
+				.VOICEMAILSHTML)) {
 
 			webFile.append(WebPageManager.header("Voicemail Data"));
 			/* WebPageManager supports c-style varargs */
@@ -1053,10 +1193,8 @@ public class BackupManager extends Phone {
 	private void writeVMailToFile(ArrayList<VoiceMail> vList)
 		throws ExceptionManager {
 
-			try (BufferedWriter outputFile = Files
-					.newBufferedWriter(FilePairManager.VOICEMAILSCSV
-					.getDecryptedPath(this.restoreLocation),
-					StandardCharsets.UTF_8)) {
+			try (BufferedWriter outputFile = openReport(FilePairManager
+				.VOICEMAILSCSV)) {
 
 				outputFile.append(getVMailHeader());
 				for (VoiceMail vm : vList) {
@@ -1200,10 +1338,8 @@ public class BackupManager extends Phone {
 	private void writeSafariWeb(ArrayList<SafariHistory> sfArr) throws
 		ExceptionManager, IOException {
 
-		try (BufferedWriter safariHistory = Files
-				.newBufferedWriter(FilePairManager.SAFARIHTML
-				.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter safariHistory = openReport(FilePairManager
+				.SAFARIHTML)) {
 
 			safariHistory.append(WebPageManager.header("Safari Browsing"
 					+ "Data"));
@@ -1232,10 +1368,8 @@ public class BackupManager extends Phone {
 		String fileHeader = "Visit Count,Visit Date and Time,"
 				+ "Site Name,Site URL\n";
 
-		try (BufferedWriter historyFile = Files
-				.newBufferedWriter(FilePairManager.SAFARICSV
-						.getDecryptedPath(this.restoreLocation),
-						StandardCharsets.UTF_8)) {
+		try (BufferedWriter historyFile = openReport(FilePairManager
+				.SAFARICSV)) {
 
 			historyFile.append(fileHeader);
 			for (SafariHistory historyItem : historyArr) {
@@ -1268,28 +1402,21 @@ public class BackupManager extends Phone {
 		return;
 	}
 
-	/* Copy encrypted media by file, used on encrypted backups. */
-	private void copyEncryptedMediaByFile(Media mediaFile, Path localDST) {
-		Path destination = localDST;
-		try {
-			mediaFile.getMediaFile().extract(destination);
-		} catch (ExceptionManager e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	}
-
-	/* Copy a single media file to our extraction directory. */
-	private void copyMediaByFile(Path localSRC, Path localDST)
+	/*
+	 * Copy a single media file to our extraction directory, hashing it as
+	 * it is copied. Returns null if there was nothing to copy.
+	 */
+	private FileDigests copyMediaByFile(Path localSRC, Path localDST)
 		throws ExceptionManager {
 
 		/* Make sure the hash is a real file instead of just a hash entry. */
 		if (! Files.exists(localSRC)) {
-			return;
+			return null;
 		}
 
+		FileDigests digests = FileDigests.create();
 		try {
-			Files.copy(localSRC, localDST);
+			digests.link(localSRC, localDST);
 		} catch (FileAlreadyExistsException e) {
 			throw new ExceptionManager("The file already exists and will"
 					+ " not be overwritten! System said: ", e, false);
@@ -1307,44 +1434,65 @@ public class BackupManager extends Phone {
 				+ " a fatal error and the program will now exit.", e,
 				true);
 		} 
-		return;
+		recordHashes(localDST, digests);
+		return digests;
 	}
 
-	/* Copy an entire media directory to the extraction directory. */
-	private void copyMediaByDir(ArrayList<Media> MediaList, String dir)
-		throws ExceptionManager {
-		int mediaTotal = MediaList.size();
+	/*
+	 * Open one of the reports, which also goes into the archive when
+	 * there is one.
+	 */
+	private BufferedWriter openReport(FilePairManager report) throws
+		IOException {
+		Path reportFile = report.getDecryptedPath(this.restoreLocation);
+		if (this.outputSink != null) {
+			return this.outputSink.openReport(reportFile);
+		}
+		return Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8);
+	}
 
-		for (int i = 0; i < mediaTotal; i++) {
-			/* Compare the directory request, extract only those files. */
-			if (dir.equals(MediaList.get(i).getFileRealParent())) {
-				/* Error checking is done in copyMediaByFile. */
-				if (this.iPhone.isEncrypted) {
-					copyEncryptedMediaByFile(MediaList.get(i),
-						MediaList.get(i).getToLocation());
-				} else {
-					copyMediaByFile(MediaList.get(i).getFromLocation(),
-						MediaList.get(i).getToLocation());
-				}
-			}
+	/* Finish the archive, with the hash manifest last so it is complete. */
+	private void closeOutput() throws IOException {
+		try {
+			this.outputSink.putFile(FilePairManager.HASHMANIFEST
+				.getDecryptedPath(this.restoreLocation), true);
+		} finally {
+			this.outputSink.close();
 		}
 	}
 
+	/* Note an extracted file in the hash manifest. */
+	private void recordHashes(Path file, FileDigests digests)
+		throws ExceptionManager {
+		if (this.hashManifest != null) {
+			this.hashManifest.record(file, digests);
+		}
+	}
+
+	/* Copy an entire media directory to the extraction directory. */
+	private void copyMediaByDir(ManifestTable MediaList, String dir,
+		Consumer<MediaExtractor> progress) throws ExceptionManager {
+		MediaExtractor extractor = new MediaExtractor(MediaList,
+			this.iPhone.isEncrypted, this.hashManifest, this.journal,
+			this.contentStore, this.outputSink);
+		extractor.setListener(progress);
+		/* The table has the rows grouped by directory already. */
+		extractor.extract(MediaList.getDirectoryRows(dir));
+	}
+
 	/* Extract all media files (pictures/video) */
-	public void copyAllMedia(ArrayList<Media> MediaList) throws
+	public void copyAllMedia(ManifestTable MediaList) throws
 		ExceptionManager {
-		int mediaTotal = MediaList.size();
+		copyAllMedia(MediaList, extractor -> { });
+	}
 
-		/* Error checking is done in copyMediaByFile. */
-		for (int i = 0; i < mediaTotal; i++) {
-			if (iPhone.isEncrypted) {
-				copyEncryptedMediaByFile(MediaList.get(i),
-					MediaList.get(i).getToLocation());
-			} else {
-				copyMediaByFile(MediaList.get(i).getFromLocation(),
-					MediaList.get(i).getToLocation());
-			}
-		}
+	public void copyAllMedia(ManifestTable MediaList,
+		Consumer<MediaExtractor> progress) throws ExceptionManager {
+		MediaExtractor extractor = new MediaExtractor(MediaList,
+			this.iPhone.isEncrypted, this.hashManifest, this.journal,
+			this.contentStore, this.outputSink);
+		extractor.setListener(progress);
+		extractor.extractAll();
 	}
 
 /*
@@ -1354,10 +1502,8 @@ public class BackupManager extends Phone {
 */
 	private void writeContactsWeb(ArrayList<Contact> ContactList) throws
 		ExceptionManager, IOException {
-		try (BufferedWriter contactFile = Files
-				.newBufferedWriter(FilePairManager.CONTACTSHTML
-				.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter contactFile = openReport(FilePairManager
+				.CONTACTSHTML)) {
 
 			contactFile.append(WebPageManager.header("Stored Contact List"));
 			contactFile.append(WebPageManager.beginTable("First Name", 
@@ -1406,10 +1552,8 @@ public class BackupManager extends Phone {
 	private void writeContactsToFile(ArrayList<Contact> ContactList)
 		throws ExceptionManager {
 
-		try (BufferedWriter outputFile = Files
-				.newBufferedWriter(FilePairManager.CONTACTSCSV
-				.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter outputFile = openReport(FilePairManager
+				.CONTACTSCSV)) {
 
 			outputFile.write(getContactsHeader());
 			for (Contact contact : ContactList) {
@@ -1473,10 +1617,8 @@ public class BackupManager extends Phone {
 	private void writeMessageHistoryToFile(List<Message> messageList)
 		throws ExceptionManager {
 
-		try (BufferedWriter outputFile = Files
-				.newBufferedWriter(FilePairManager.MESSAGESCSV
-				.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter outputFile = openReport(FilePairManager
+				.MESSAGESCSV)) {
 
 			/* Drop the header into the file, then add looped data. */
 			outputFile.write(getMessagesHeader());
@@ -1514,9 +1656,8 @@ public class BackupManager extends Phone {
 	private void writeMessagesWeb(ArrayList<Message> msgList) throws
 		ExceptionManager {
 
-		try (BufferedWriter msgFile = Files.newBufferedWriter(FilePairManager
-				.MESSAGESHTML.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter msgFile = openReport(FilePairManager
+				.MESSAGESHTML)) {
 			msgFile.append(WebPageManager.header("Message History"));
 			msgFile.append(WebPageManager.beginTable("Message Thread ID",
 					"Is a Group Chat",
@@ -1595,9 +1736,8 @@ public class BackupManager extends Phone {
 	private void writeCalllogWeb(ArrayList<PhoneCall> callHistory) throws
 		ExceptionManager {
 
-		try (BufferedWriter callLog = Files.newBufferedWriter(FilePairManager
-				.CALLSHTML.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter callLog = openReport(FilePairManager
+				.CALLSHTML)) {
 			callLog.append(WebPageManager.header("Call History"));
 			callLog.append(WebPageManager.beginTable("Call Date/Time",
 					"Call length (Seconds)", "Service Utilized", "Number",
@@ -1621,9 +1761,8 @@ public class BackupManager extends Phone {
 	private void writeCallLogToFile(ArrayList<PhoneCall> callHistory)
 		throws ExceptionManager {
 
-		try (BufferedWriter callLog = Files.newBufferedWriter(FilePairManager
-				.CALLSCSV.getDecryptedPath(this.restoreLocation),
-				StandardCharsets.UTF_8)) {
+		try (BufferedWriter callLog = openReport(FilePairManager
+				.CALLSCSV)) {
 
 	        callLog.append(getCallLogHeader());
 	        
@@ -1648,7 +1787,7 @@ public class BackupManager extends Phone {
 /*
  * This is for CSV file cleanup.
  */
-	private String escapeCsv(String input) {
+	static String escapeCsv(String input) {
 	    if (input == null) return "";
 	    if (input.contains(",") || input.contains("\"") || 
 	    		input.contains("\n")) {
@@ -1665,27 +1804,32 @@ public class BackupManager extends Phone {
 		 * have not included it here. This may (or may have) changed since
 		 * I last tested so I reserve the right to be wrong.
 		 */
+		if (ContextManager.getInMemoryDatabases()) {
+			try {
+				for (FilePairManager pair : List.of(FilePairManager.CALLS,
+						FilePairManager.CONTACTS, FilePairManager.MANIFEST,
+						FilePairManager.MESSAGES,
+						FilePairManager.VOICEMAILS)) {
+					DatabaseFileManager.loadInMemory(pair
+						.getDecryptedPath(this.restoreLocation), FileChannel
+						.open(pair.getEncryptedPath(this.backupLocation),
+						StandardOpenOption.READ));
+				}
+			} catch (IOException e) {
+				throw new ExceptionManager("Unable to load critical files"
+					+ " into memory: ", e, true);
+			}
+			return;
+		}
+
 		try {
-				Files.copy(FilePairManager.CALLS
-						.getEncryptedPath(this.backupLocation),
-						FilePairManager.CALLS
-						.getDecryptedPath(this.restoreLocation));
-				Files.copy(FilePairManager.CONTACTS
-						.getEncryptedPath(this.backupLocation),
-						FilePairManager.CONTACTS
-						.getDecryptedPath(this.restoreLocation));
-				Files.copy(FilePairManager.MANIFEST
-						.getEncryptedPath(this.backupLocation),
-						FilePairManager.MANIFEST
-						.getDecryptedPath(this.restoreLocation));
-				Files.copy(FilePairManager.MESSAGES
-						.getEncryptedPath(this.backupLocation),
-						FilePairManager.MESSAGES
-						.getDecryptedPath(this.restoreLocation));
-				Files.copy(FilePairManager.VOICEMAILS
-						.getEncryptedPath(this.backupLocation),
-						FilePairManager.VOICEMAILS
-						.getDecryptedPath(this.restoreLocation));
+			/* Linked rather than copied when FileLinker is enabled. */
+			for (FilePairManager pair : List.of(FilePairManager.CALLS,
+					FilePairManager.CONTACTS, FilePairManager.MANIFEST,
+					FilePairManager.MESSAGES, FilePairManager.VOICEMAILS)) {
+				FileLinker.place(pair.getEncryptedPath(this.backupLocation),
+					pair.getDecryptedPath(this.restoreLocation));
+			}
 		} catch (IOException e) {
 				throw new ExceptionManager("Unable to perform copy of"
 					+ " critical files: ", e, true);
@@ -0,0 +1,175 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.dd.plist.NSDictionary;
+import com.dd.plist.PropertyListParser;
+
+/*
+ * Everything that can be done with a backup before the password is
+ * known. It starts as soon as a backup directory is picked and runs on
+ * one low priority thread while the user types: parse the plists and
+ * build the Phone (application list included), pull Manifest.db and the
+ * support databases into the page cache. The plists and the Phone are
+ * published as futures so the extraction picks up whatever is finished
+ * and waits on the rest.
+ *
+ * The hashed subdirectories are not walked: nothing would use the list,
+ * and on a slow disk the stats would only compete with the extraction.
+ */
+public class BackupPrefetcher {
+	private static final int WARM_BUFFER_SIZE = 1024 * 1024;
+
+	/* The files read ahead, in the order the extraction wants them. */
+	private static final FilePairManager[] WARM_FILES = {
+			FilePairManager.MANIFEST, FilePairManager.CONTACTS,
+			FilePairManager.MESSAGES, FilePairManager.CALLS,
+			FilePairManager.VOICEMAILS, FilePairManager.SAFARI };
+
+	private static BackupPrefetcher current = null;
+
+	private final Path backupLocation;
+	private final Thread worker;
+	private volatile boolean cancelled = false;
+
+	private final CompletableFuture<NSDictionary> infoPList =
+			new CompletableFuture<>();
+	private final CompletableFuture<NSDictionary> manifestPList =
+			new CompletableFuture<>();
+	private final CompletableFuture<Phone> phone = new CompletableFuture<>();
+
+	private BackupPrefetcher(Path backupLocation) {
+		this.backupLocation = backupLocation;
+		this.worker = new Thread(this::run, "iExtractor-prefetch");
+		this.worker.setDaemon(true);
+		this.worker.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/*
+	 * Start on a newly chosen backup, dropping any earlier one. Asking
+	 * again for the same backup returns the prefetcher already running.
+	 */
+	public static synchronized BackupPrefetcher start(Path backupLocation) {
+		if (current != null) {
+			if (current.backupLocation.equals(backupLocation)) {
+				return current;
+			}
+			current.cancel();
+		}
+		current = new BackupPrefetcher(backupLocation);
+		current.worker.start();
+		return current;
+	}
+
+	public void cancel() {
+		this.cancelled = true;
+		this.worker.interrupt();
+	}
+
+	private void run() {
+		try {
+			this.infoPList.complete((NSDictionary) PropertyListParser.parse(
+					this.backupLocation.resolve("info.plist").toFile()));
+			this.manifestPList.complete((NSDictionary) PropertyListParser
+					.parse(this.backupLocation.resolve("Manifest.plist")
+					.toFile()));
+		} catch (Exception e) {
+			this.infoPList.completeExceptionally(e);
+			this.manifestPList.completeExceptionally(e);
+			this.phone.completeExceptionally(e);
+		}
+
+		if (this.infoPList.isDone() && ! this.phone.isDone()) {
+			try {
+				this.phone.complete(new Phone(this.infoPList.join(),
+						this.manifestPList.join()));
+			} catch (RuntimeException e) {
+				this.phone.completeExceptionally(e);
+			}
+		}
+
+		/* One buffer for every file, only this thread reads into it. */
+		ByteBuffer discard = ByteBuffer.allocateDirect(WARM_BUFFER_SIZE);
+		try {
+			for (FilePairManager pair : WARM_FILES) {
+				warm(pair.getEncryptedPath(this.backupLocation), discard);
+			}
+		} catch (IOException e) {
+			/* Only ever a head start, the extraction reads them anyway. */
+		}
+	}
+
+	/* Read a file start to finish so it sits in the page cache. */
+	private void warm(Path file, ByteBuffer discard) throws IOException {
+		if (this.cancelled || ! Files.isRegularFile(file)) {
+			return;
+		}
+		discard.clear();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			while (! this.cancelled && channel.read(discard) >= 0) {
+				discard.clear();
+			}
+		}
+	}
+
+	public NSDictionary getInfoPList() throws ExceptionManager {
+		return await(this.infoPList);
+	}
+
+	public NSDictionary getManifestPList() throws ExceptionManager {
+		return await(this.manifestPList);
+	}
+
+	public Phone getPhone() throws ExceptionManager {
+		return await(this.phone);
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws
+		ExceptionManager {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ExceptionManager) {
+				throw (ExceptionManager) e.getCause();
+			}
+			throw new ExceptionManager("Critical error reading primary files: ",
+					e.getCause(), true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExceptionManager("Interrupted reading primary files: ",
+					e, true);
+		}
+	}
+}
@@ -24,6 +24,7 @@
  */
 package me.bsdtrhodes.iExtractor;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -51,6 +52,8 @@ import java.util.Queue;
  */
 public class CleanupManager {
 	private final Queue<Path> cleanupQueue = new LinkedList<>();
+	private final Queue<Closeable> closeQueue = new LinkedList<>();
+	private final Queue<String> closeNames = new LinkedList<>();
 
 	/* This SHOULD hook into the JVM so it can be called on exit. */
 	public CleanupManager() throws IOException {
@@ -73,7 +76,30 @@ public class CleanupManager {
 	    }
 	}
 
+	/*
+	 * Something to finish before the files go, such as an archive. The
+	 * description names it in the log if closing fails.
+	 */
+	public void markForClose(Closeable resource, String description) {
+		if (resource != null) {
+			closeQueue.add(resource);
+			closeNames.add(description);
+		}
+	}
+
 	public void runCleanup() throws ExceptionManager {
+	    while (!closeQueue.isEmpty()) {
+	        Closeable resource = closeQueue.poll();
+	        String description = closeNames.poll();
+	        try {
+	            resource.close();
+	        } catch (IOException e) {
+	            ExceptionManager.logWarning("Failed to close "
+	            	+ description, e);
+	        }
+	    }
+	    /* Pooled connections would keep the databases open. */
+	    DatabaseFileManager.closeAll();
 	    while (!cleanupQueue.isEmpty()) {
 	        Path file = cleanupQueue.poll();
 	        try {
@@ -0,0 +1,173 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * An optional store (-DiExtractor.dedupStore=true) that keeps one copy
+ * of each distinct file under .objects in the restore directory, named
+ * by its SHA-256:
+ *
+ * .objects/3f/3fa4...c1
+ *
+ * A file is extracted to a temporary name in .objects/tmp with SHA-256
+ * among its digests, so the hash comes out of the decryption or copy
+ * that had to happen anyway. commit() then keeps it as a new object,
+ * or throws it away when the object is already there, and links the
+ * friendly path to the object. The same photo in five albums takes the
+ * space of one.
+ *
+ * Friendly paths are hard links, or relative symbolic links where hard
+ * links fail. If neither works the path is listed in
+ * .objects/references.csv instead, which close() finishes.
+ */
+public class ContentStore implements Closeable {
+	public static final String ALGORITHM = "SHA-256";
+
+	private final Path restoreLocation;
+	private final Path objects;
+	private final Path temporary;
+	private final AtomicLong nextTemporary = new AtomicLong();
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private BufferedWriter references = null;
+
+	public ContentStore(Path restoreLocation) throws ExceptionManager {
+		this.restoreLocation = restoreLocation;
+		this.objects = restoreLocation.resolve(".objects");
+		this.temporary = this.objects.resolve("tmp");
+		try {
+			Files.createDirectories(this.temporary);
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to create the object store",
+					e, true);
+		}
+	}
+
+	/* Digests that include the one objects are named by. */
+	public FileDigests newDigests() throws ExceptionManager {
+		List<String> algorithms = new ArrayList<>(ContextManager
+				.getDigestAlgorithms());
+		if (! algorithms.contains(ALGORITHM)) {
+			algorithms.add(ALGORITHM);
+		}
+		return new FileDigests(algorithms);
+	}
+
+	/* A name to extract to before commit(), the file does not exist. */
+	public Path newTemporary() {
+		return this.temporary.resolve("part-" + nextTemporary
+				.incrementAndGet());
+	}
+
+	public Path getObjectPath(String digest) {
+		return this.objects.resolve(digest.substring(0, 2)).resolve(digest);
+	}
+
+	/*
+	 * temporary holds a complete file hashed into digests. Make it an
+	 * object (unless it already is one) and point destination at it.
+	 */
+	public void commit(Path temporary, FileDigests digests,
+			Path destination) throws IOException {
+		Path object = getObjectPath(digests.get(ALGORITHM));
+		Files.createDirectories(object.getParent());
+		try {
+			/* A link fails if the object exists, a move might replace it. */
+			Files.createLink(object, temporary);
+			this.stored.incrementAndGet();
+		} catch (FileAlreadyExistsException e) {
+			this.duplicates.incrementAndGet();
+			this.bytesSaved.addAndGet(digests.getLength());
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			/* No hard links here, keep the first copy that arrives. */
+			try {
+				Files.move(temporary, object);
+				this.stored.incrementAndGet();
+			} catch (FileAlreadyExistsException exists) {
+				this.duplicates.incrementAndGet();
+				this.bytesSaved.addAndGet(digests.getLength());
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		try {
+			Files.createLink(destination, object);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			try {
+				Files.createSymbolicLink(destination, destination
+						.getParent().relativize(object));
+			} catch (FileSystemException | UnsupportedOperationException
+					noLinks) {
+				reference(destination, object);
+			}
+		}
+	}
+
+	private synchronized void reference(Path destination, Path object)
+			throws IOException {
+		if (this.references == null) {
+			this.references = Files.newBufferedWriter(this.objects
+					.resolve("references.csv"), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		this.references.append(BackupManager.escapeCsv(this.restoreLocation
+				.relativize(destination).toString())).append(",")
+				.append(this.restoreLocation.relativize(object).toString())
+				.append("\n");
+		this.references.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.references != null) {
+			this.references.close();
+			this.references = null;
+		}
+	}
+
+	/* For example "1200 objects, 85 duplicates (2.1 GB saved)". */
+	public String getSummary() {
+		return this.stored.get() + " objects, " + this.duplicates.get()
+				+ " duplicates (" + MediaExtractor.formatBytes(this
+				.bytesSaved.get()) + " saved)";
+	}
+}
@@ -24,6 +24,11 @@
  */
 package me.bsdtrhodes.iExtractor;
 
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
 import javafx.stage.Stage;
 
 public class ContextManager {
@@ -32,6 +37,81 @@ public class ContextManager {
 	/* Global in-app option to enable debug for dev purposes. */
 	private static boolean enableDebug = true;
 
+	/*
+	 * Decryption engine, -DiExtractor.decryptEngine=STREAM selects the
+	 * old CipherInputStream path so the two can be timed against
+	 * each other.
+	 */
+	private static final KeyBag.DecryptEngine decryptEngine = parseEnum(
+			"iExtractor.decryptEngine", KeyBag.DecryptEngine.CHANNEL);
+
+	/* Encrypted files at least this big (bytes) decrypt in parallel. */
+	private static final long parallelThreshold = Long.getLong(
+			"iExtractor.parallelThreshold", 256L * 1024 * 1024);
+
+	/*
+	 * Digests worked out while files are extracted, for example
+	 * -DiExtractor.digests=MD5,SHA-1,SHA-256. The reports list MD5 so it
+	 * is always included.
+	 */
+	private static final List<String> digestAlgorithms = parseDigests(System
+			.getProperty("iExtractor.digests", "MD5"));
+
+	/* Decrypt the support databases into memory instead of to disk. */
+	private static final boolean inMemoryDatabases = Boolean.getBoolean(
+			"iExtractor.inMemoryDatabases");
+
+	/* Keep unlocked class keys between runs, see KeyCache. */
+	private static final boolean keyCache = Boolean.getBoolean(
+			"iExtractor.keyCache");
+
+	/*
+	 * Media extraction workers, 0 picks one per core for encrypted
+	 * backups and twice that (up to 16) for plain copies, which mostly
+	 * wait on the disk.
+	 */
+	private static final int mediaWorkers = Integer.getInteger(
+			"iExtractor.mediaWorkers", 0);
+
+	/* Check the MD5 of resumed files, not only their size. */
+	private static final boolean verifyJournal = Boolean.getBoolean(
+			"iExtractor.verifyJournal");
+
+	/*
+	 * Link files out of unencrypted backups instead of copying them, see
+	 * FileLinker. Linked files are still read once for the hash manifest
+	 * unless -DiExtractor.hashLinks=false.
+	 */
+	private static final FileLinker.Mode linkMode = parseEnum(
+			"iExtractor.linkMode", FileLinker.Mode.COPY);
+	private static final boolean hashLinks = Boolean.parseBoolean(System
+			.getProperty("iExtractor.hashLinks", "true"));
+
+	/* Write each distinct file once, see ContentStore. */
+	private static final boolean dedupStore = Boolean.getBoolean(
+			"iExtractor.dedupStore");
+
+	/*
+	 * Write media and reports into one TAR or ZIP instead of loose files,
+	 * see OutputSink. The archive defaults to Extraction.tar (or .zip) in
+	 * the restore directory; a path may be a named pipe, "-" is stdout.
+	 */
+	private static final OutputSink.Format outputFormat = parseEnum(
+			"iExtractor.output", OutputSink.Format.DIRECTORY);
+	private static final String outputArchive = System.getProperty(
+			"iExtractor.outputArchive", "");
+	private static final boolean compressReports = Boolean.parseBoolean(System
+			.getProperty("iExtractor.compressReports", "true"));
+
+	/*
+	 * The order media is read from the backup in and, for LOCALITY, how
+	 * many bytes may be read ahead of the workers, see ReadScheduler.
+	 */
+	private static final ReadScheduler.Order readOrder = parseEnum(
+			"iExtractor.readOrder", ReadScheduler.Order.SIZE);
+	private static final long readAhead = Long.getLong("iExtractor.readAhead",
+			256L * 1024 * 1024);
+
 	public static void setPrimaryStage(Stage stage) {
         primaryStage = stage;
     }
@@ -47,4 +127,101 @@ public class ContextManager {
     public static boolean getDebug() {
     	return enableDebug;
     }
+
+    public static KeyBag.DecryptEngine getDecryptEngine() {
+    	return decryptEngine;
+    }
+
+    public static List<String> getDigestAlgorithms() {
+    	return digestAlgorithms;
+    }
+
+    /*
+     * Enum options are read while this class loads, so a typo must not
+     * throw. Case does not matter; anything unknown keeps the default.
+     */
+    private static <E extends Enum<E>> E parseEnum(String property,
+    	E fallback) {
+    	String value = System.getProperty(property);
+    	if (value == null) {
+    		return fallback;
+    	}
+    	try {
+    		return Enum.valueOf(fallback.getDeclaringClass(), value.trim()
+    				.toUpperCase(Locale.ROOT));
+    	} catch (IllegalArgumentException e) {
+    		ExceptionManager.logWarning("Unknown value \"" + value + "\" for "
+    				+ property + ", using " + fallback);
+    		return fallback;
+    	}
+    }
+
+    private static List<String> parseDigests(String algorithms) {
+    	Set<String> digests = new LinkedHashSet<>();
+    	digests.add("MD5");
+    	for (String algorithm : algorithms.split(",")) {
+    		if (! algorithm.isBlank()) {
+    			digests.add(algorithm.trim().toUpperCase());
+    		}
+    	}
+    	return List.copyOf(digests);
+    }
+
+    public static boolean getInMemoryDatabases() {
+    	return inMemoryDatabases;
+    }
+
+    public static boolean getKeyCache() {
+    	return keyCache;
+    }
+
+    public static int getMediaWorkers(boolean encrypted) {
+    	if (mediaWorkers > 0) {
+    		return mediaWorkers;
+    	}
+    	int cores = Runtime.getRuntime().availableProcessors();
+    	return encrypted ? cores : Math.min(16, cores * 2);
+    }
+
+    public static boolean getVerifyJournal() {
+    	return verifyJournal;
+    }
+
+    public static FileLinker.Mode getLinkMode() {
+    	return linkMode;
+    }
+
+    public static boolean getHashLinks() {
+    	return hashLinks;
+    }
+
+    public static boolean getDedupStore() {
+    	return dedupStore;
+    }
+
+    public static OutputSink.Format getOutputFormat() {
+    	return outputFormat;
+    }
+
+    public static String getOutputArchive() {
+    	return outputArchive;
+    }
+
+    public static boolean getCompressReports() {
+    	return compressReports;
+    }
+
+    public static ReadScheduler.Order getReadOrder() {
+    	return readOrder;
+    }
+
+    /* Zero or less turns the read-ahead thread off. */
+    public static long getReadAhead() {
+    	return readAhead;
+    }
+
+    /* Zero or less turns parallel decryption off. */
+    public static long getParallelThreshold() {
+    	return parallelThreshold;
+    }
 }
@@ -296,6 +296,8 @@ public class Controller {
 	public void doSetBackupFile(ActionEvent event) {
 		this.backupLocation = retBackupLocation();
 		if (this.backupLocation != null) {
+			/* Get a head start while the rest is being set up. */
+			BackupPrefetcher.start(this.backupLocation);
 			setBackupLocation.setText("✔ Backup Location Set");
 		}
 	}
@@ -367,6 +369,9 @@ public class Controller {
 	private void doProgramFlow() throws ExceptionManager {
 	    if (this.backupLocation == null) {
 	        this.backupLocation = retBackupLocation();
+	        if (this.backupLocation != null) {
+	        	BackupPrefetcher.start(this.backupLocation);
+	        }
 	    }
 
 	    if (this.restoreLocation == null) {
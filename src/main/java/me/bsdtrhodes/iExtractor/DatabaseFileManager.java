@@ -47,31 +47,116 @@ package me.bsdtrhodes.iExtractor;
  * SUCH DAMAGE.
  */
 
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
 
-/* Manage database connections. */
+/*
+ * Manage database connections. Every database we open is only ever
+ * read, and the same file gets opened over and over during a run, so
+ * connections are pooled per database path. They are opened read-only
+ * and tuned for reading: query_only, no journal, a large page cache,
+ * mmap and temporary tables in memory. Prepared statements stay with
+ * the physical connection, so the next user that prepares the same SQL
+ * gets the already compiled statement.
+ *
+ * Callers use this exactly as before; closing the Connection (or this
+ * manager) hands the connection back to the pool instead of closing
+ * it. closeAll() really closes them and logs how long each database
+ * spent opening and querying.
+ */
 public class DatabaseFileManager implements AutoCloseable {
 
-	private Connection conn;
+	/* 64 MiB of page cache (negative is KiB), 256 MiB of mmap. */
+	private static final int CACHE_SIZE = -64 * 1024;
+	private static final long MMAP_SIZE = 256L * 1024 * 1024;
+
+	/*
+	 * Database images that were decrypted straight into memory, keyed by
+	 * the path the file would have had on disk. Opening one of those
+	 * paths gets an in-memory SQLite database instead of a file.
+	 */
+	private static final Map<Path, byte[]> MEMORY_DATABASES =
+			new ConcurrentHashMap<>();
+
+	private static final Map<Path, Pool> POOLS = new ConcurrentHashMap<>();
+
+	private final Pool pool;
+	private final PooledConnection pooled;
+	private final Connection conn;
+	private boolean released = false;
 
 	public DatabaseFileManager(Path dbFile) throws ExceptionManager {
-		String cURL = "jdbc:sqlite:" + dbFile.toAbsolutePath();
-		SQLiteConfig conconf = new SQLiteConfig();
-		conconf.setEncoding(SQLiteConfig.Encoding.UTF8);
-		try {
-			this.conn = DriverManager.getConnection(cURL, conconf.toProperties());
-			
-		} catch (SQLException e) {
-			throw new ExceptionManager("Unable to open a database connection",
-					e, true);
+		this.pool = POOLS.computeIfAbsent(memoryKey(dbFile), Pool::new);
+		this.pooled = this.pool.borrow();
+		this.conn = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new ConnectionHandler());
+	}
+
+	/*
+	 * Read a whole database into memory and serve it for dbFile from
+	 * now on, so the plaintext never has to touch the disk.
+	 */
+	public static void loadInMemory(Path dbFile, SeekableByteChannel source)
+			throws ExceptionManager {
+		try (SeekableByteChannel channel = source) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException(dbFile.getFileName() + " is too large"
+						+ " to load into memory");
+			}
+			ByteBuffer image = ByteBuffer.allocate((int) size);
+			while (image.hasRemaining() && channel.read(image) >= 0) {
+				/* Keep reading. */
+			}
+			/*
+			 * A WAL database cannot be opened from memory, mark it as a
+			 * rollback journal database. The backup holds no -wal file.
+			 */
+			byte[] bytes = image.array();
+			if (bytes.length > 19 && bytes[18] == 2 && bytes[19] == 2) {
+				bytes[18] = 1;
+				bytes[19] = 1;
+			}
+			MEMORY_DATABASES.put(memoryKey(dbFile), bytes);
+			Pool pool = POOLS.get(memoryKey(dbFile));
+			if (pool != null) {
+				pool.closeIdle();
+			}
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to load " + dbFile
+					.getFileName() + " into memory", e, true);
 		}
 	}
 
+	private static Path memoryKey(Path dbFile) {
+		return dbFile.toAbsolutePath().normalize();
+	}
+
 	/* Provide the established connection to the consumer. */
 	public Connection getConnection() {
 		return conn;
@@ -80,27 +165,247 @@ public class DatabaseFileManager implements AutoCloseable {
 	/* XXX: Eventually, remove this once everything is autoclosed. */
 	/* Cleanup the connection after doing our thing. */
 	public void finish() throws ExceptionManager {
-		try {
-			conn.close();
-		} catch (SQLException e) {
-			throw new ExceptionManager("Failed to close DB connection", e,
-					true);
-		}
+		release();
 	}
 
 	@Override
 	public void close() throws Exception {
+		release();
+	}
+
+	/* Hand the connection back, only the first call counts. */
+	private synchronized void release() {
+		if (! this.released) {
+			this.released = true;
+			this.pool.giveBack(this.pooled);
+		}
+	}
+
+	/*
+	 * Close every pooled connection and log the timings. Used before the
+	 * decrypted databases are deleted.
+	 */
+	public static void closeAll() {
+		for (Pool pool : POOLS.values()) {
+			pool.closeIdle();
+			if (pool.opens.get() > 0) {
+				ExceptionManager.logInfo(pool.timings());
+			}
+		}
+	}
+
+	/* The idle connections for one database and its counters. */
+	private static class Pool {
+		private final Path dbFile;
+		private final Deque<PooledConnection> idle = new ArrayDeque<>();
+		private final AtomicLong opens = new AtomicLong();
+		private final AtomicLong openNanos = new AtomicLong();
+		private final AtomicLong uses = new AtomicLong();
+		private final AtomicLong queries = new AtomicLong();
+		private final AtomicLong queryNanos = new AtomicLong();
+		private final AtomicLong statementHits = new AtomicLong();
+
+		Pool(Path dbFile) {
+			this.dbFile = dbFile;
+		}
+
+		PooledConnection borrow() throws ExceptionManager {
+			this.uses.incrementAndGet();
+			synchronized (this) {
+				PooledConnection pooled = this.idle.pollFirst();
+				if (pooled != null) {
+					return pooled;
+				}
+			}
+			long start = System.nanoTime();
+			try {
+				return new PooledConnection(open(this.dbFile));
+			} catch (SQLException e) {
+				throw new ExceptionManager("Unable to open a database"
+						+ " connection", e, true);
+			} finally {
+				this.opens.incrementAndGet();
+				this.openNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		synchronized void giveBack(PooledConnection pooled) {
+			this.idle.addFirst(pooled);
+		}
+
+		synchronized void closeIdle() {
+			for (PooledConnection pooled : this.idle) {
+				try {
+					pooled.physical.close();
+				} catch (SQLException e) {
+					/* Going away regardless. */
+				}
+			}
+			this.idle.clear();
+		}
+
+		String timings() {
+			return this.dbFile.getFileName() + ": " + this.opens.get()
+				+ " opens (" + TimeUnit.NANOSECONDS.toMillis(this.openNanos
+				.get()) + " ms), " + this.uses.get() + " uses, "
+				+ this.queries.get() + " queries (" + TimeUnit.NANOSECONDS
+				.toMillis(this.queryNanos.get()) + " ms), "
+				+ this.statementHits.get() + " reused statements";
+		}
+
+		/* Open and tune a new physical connection. */
+		private static Connection open(Path dbFile) throws SQLException {
+			SQLiteConfig conconf = new SQLiteConfig();
+			conconf.setEncoding(SQLiteConfig.Encoding.UTF8);
+			conconf.setCacheSize(CACHE_SIZE);
+			conconf.setTempStore(SQLiteConfig.TempStore.MEMORY);
+			byte[] image = MEMORY_DATABASES.get(dbFile);
+			Connection conn;
+			if (image != null) {
+				conn = DriverManager.getConnection("jdbc:sqlite::memory:",
+						conconf.toProperties());
+				conn.unwrap(SQLiteConnection.class).deserialize("main",
+						image);
+			} else {
+				conconf.setReadOnly(true);
+				conconf.setPragma(SQLiteConfig.Pragma.MMAP_SIZE,
+						Long.toString(MMAP_SIZE));
+				conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile,
+						conconf.toProperties());
+			}
+			try (Statement pragma = conn.createStatement()) {
+				/* A WAL file opened read-only keeps its journal mode. */
+				try {
+					pragma.execute("PRAGMA journal_mode = OFF");
+				} catch (SQLException e) {
+					/* Nothing is written, the journal never matters. */
+				}
+				pragma.execute("PRAGMA query_only = 1");
+			}
+			return conn;
+		}
+	}
+
+	/* A physical connection and the statements prepared on it. */
+	private static class PooledConnection {
+		private final Connection physical;
+		private final Map<String, PreparedStatement> statements =
+				new HashMap<>();
+		private final Set<String> inUse = new HashSet<>();
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+		}
+	}
+
+	/*
+	 * What the caller sees as the Connection. close() gives it back to
+	 * the pool and prepareStatement(sql) comes out of the cache.
+	 */
+	private class ConnectionHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				release();
+				return null;
+			case "isClosed":
+				return released;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Pooled " + pool.dbFile.getFileName();
+			default:
+				break;
+			}
+			if (released) {
+				throw new SQLException("Connection was returned to the pool");
+			}
+			if (method.getName().equals("prepareStatement") && args.length
+					== 1) {
+				return prepare((String) args[0]);
+			}
+			Object result = call(pooled.physical, method, args);
+			if (result instanceof Statement) {
+				return timed((Statement) result, null);
+			}
+			return result;
+		}
+
+		/* The cached statement for sql, or a fresh one if it is busy. */
+		private Statement prepare(String sql) throws SQLException {
+			PreparedStatement statement;
+			synchronized (pooled) {
+				if (pooled.inUse.contains(sql)) {
+					return timed(pooled.physical.prepareStatement(sql), null);
+				}
+				statement = pooled.statements.get(sql);
+				if (statement == null) {
+					statement = pooled.physical.prepareStatement(sql);
+					pooled.statements.put(sql, statement);
+				} else {
+					pool.statementHits.incrementAndGet();
+				}
+				pooled.inUse.add(sql);
+			}
+			return timed(statement, sql);
+		}
+
+		/*
+		 * Count and time the executes. A cached statement (sql set) is
+		 * reset instead of closed.
+		 */
+		private Statement timed(Statement statement, String sql) {
+			Class<?> type = statement instanceof PreparedStatement
+					? PreparedStatement.class : Statement.class;
+			ResultSet[] last = new ResultSet[1];
+			return (Statement) Proxy.newProxyInstance(
+					Statement.class.getClassLoader(), new Class<?>[] { type },
+					(proxy, method, args) -> {
+				String name = method.getName();
+				if (sql != null && name.equals("close")) {
+					synchronized (pooled) {
+						if (pooled.inUse.remove(sql)) {
+							if (last[0] != null) last[0].close();
+							last[0] = null;
+							((PreparedStatement) statement).clearParameters();
+						}
+					}
+					return null;
+				}
+				if (sql != null && name.equals("isClosed")) {
+					return ! pooled.inUse.contains(sql);
+				}
+				if (name.equals("getConnection")) {
+					return conn;
+				}
+				if (name.startsWith("execute")) {
+					long start = System.nanoTime();
+					try {
+						Object result = call(statement, method, args);
+						if (result instanceof ResultSet) {
+							last[0] = (ResultSet) result;
+						}
+						return result;
+					} finally {
+						pool.queries.incrementAndGet();
+						pool.queryNanos.addAndGet(System.nanoTime() - start);
+					}
+				}
+				return call(statement, method, args);
+			});
+		}
+	}
+
+	private static Object call(Object target, Method method, Object[] args)
+			throws Throwable {
 		try {
-			/* 
-			 * For autocloseable, my understanding is both of these must be satisfied.
-			 */
-            if (conn != null && ! conn.isClosed()) {
-                conn.close();
-            }
-        } catch (SQLException e) {
-            throw new ExceptionManager("Failed to close DB connection", e,
-            		true);
-        }
-		
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
 	}
 }
@@ -80,17 +80,10 @@ public class DatabaseQueriesManager {
 					+ " LIKE '%MISC%'";
 	    }
 
-	    public static String getMediaFilesQuery() {
-			/*
-			 * This query will collect the media list, skipping metadata and
-			 * thumbnail files.
-			 */
-			return "SELECT fileID, relativePath, flags, file FROM Files WHERE"
-					+ " domain = 'CameraRollDomain' AND relativePath LIKE"
-					+ " '%DCIM%' AND relativePath NOT LIKE '%Thumbnails%' AND"
-					+ " relativePath NOT LIKE '%Adjustments%' AND relativePath"
-					+ " NOT LIKE '%THM' AND relativePath NOT LIKE '%PhotoData%'"
-					+ " AND flags = 1";
+	    /* ManifestCursor adds its own WHERE clause to this. */
+	    public static String getManifestCursorQuery() {
+	    	return "SELECT fileID, domain, relativePath, flags, file FROM"
+	    			+ " Files";
 	    }
 
 	    public static String getTextMessageQuery() {
@@ -117,11 +110,6 @@ public class DatabaseQueriesManager {
 	    		+ " voicemail ORDER BY date ASC";
 	    }
 
-	    public static String getVMailFileQuery(String ID) {
-	    	return "SELECT fileID, file relativePath FROM FILES WHERE relativePath"
-	    		+ " LIKE 'Library/Voicemail/" + ID + ".amr'";
-	    }
-
 	    public static String getSafariHistoryQuery() {
 	    	return "SELECT DATETIME(history_visits.visit_time +"
 	    			+ " STRFTIME('%s','2001-01-01 00:00:00'), 'unixepoch',"
@@ -143,9 +131,9 @@ public class DatabaseQueriesManager {
 	    			+ " ZCALLRECORD ORDER BY calltime DESC";
 	    }
 
-	    /* This one is used in the EncryptedFile class. */
+	    /* These are used by the ManifestIndex, both hit an index. */
 	    public static String getEncFileQuery() {
-	    	return "SELECT fileID, relativePath, flags, file FROM Files WHERE"
-	    			+ " fileID LIKE ?";
+	    	return "SELECT fileID, domain, relativePath, flags, file FROM"
+	    			+ " Files WHERE fileID = ?";
 	    }
 }
@@ -0,0 +1,209 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+/*
+ * A read-only channel over an encrypted backup file that decrypts only
+ * the bytes being asked for. CBC lets us start anywhere on a block
+ * boundary by using the previous ciphertext block as the IV, so seeking
+ * to the middle of a 4 GB video costs one small read.
+ *
+ * A small window of plaintext is kept so that stream style callers
+ * reading a few KB at a time do not decrypt the same blocks over and
+ * over. Get one from KeyBag.openChannel() or EncryptedFile.openChannel().
+ */
+public class DecryptingChannel implements SeekableByteChannel {
+	private static final int BLOCK_SIZE = 16;
+	private static final int WINDOW_SIZE = 64 * 1024;
+
+	private final FileChannel source;
+	private final Key key;
+	private final byte[] protectionClass;
+	private final long cipherSize, plainSize;
+
+	/* Decrypted bytes for [windowStart, windowStart + windowLength). */
+	private final byte[] window = new byte[WINDOW_SIZE];
+	private final ByteBuffer cipherText = ByteBuffer.allocate(WINDOW_SIZE);
+	private long windowStart = -1;
+	private int windowLength = 0;
+
+	private long position = 0;
+
+	/*
+	 * size is the real file size, or -1 to use the ciphertext length
+	 * less the PKCS#7 padding, as KeyBag.decryptFile() does.
+	 */
+	DecryptingChannel(Key key, byte[] protectionClass, Path file, long size)
+			throws IOException {
+		this.source = FileChannel.open(file, StandardOpenOption.READ);
+		this.key = key;
+		this.protectionClass = protectionClass;
+		this.cipherSize = this.source.size() & ~(BLOCK_SIZE - 1L);
+		try {
+			this.plainSize = (size < 0) ? this.cipherSize - padding() :
+				Math.min(size, this.cipherSize);
+		} catch (IOException e) {
+			this.source.close();
+			throw e;
+		}
+	}
+
+	/* Decrypt the last block to see how much of it is padding. */
+	private int padding() throws IOException {
+		if (this.cipherSize < BLOCK_SIZE) {
+			return 0;
+		}
+		fillWindow(this.cipherSize - BLOCK_SIZE);
+		return KeyBag.paddingLength(this.window, this.windowLength
+				- BLOCK_SIZE);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (this.position >= this.plainSize) {
+			return -1;
+		}
+
+		int total = 0;
+		while (dst.hasRemaining() && this.position < this.plainSize) {
+			if (this.position < this.windowStart || this.position
+					>= this.windowStart + this.windowLength) {
+				fillWindow(this.position);
+			}
+			int offset = (int) (this.position - this.windowStart);
+			int count = (int) Math.min(Math.min(dst.remaining(),
+					this.windowLength - offset),
+					this.plainSize - this.position);
+			dst.put(this.window, offset, count);
+			this.position += count;
+			total += count;
+		}
+		return total;
+	}
+
+	/* Decrypt the window of blocks that holds the requested position. */
+	private void fillWindow(long at) throws IOException {
+		long blockStart = at & ~(BLOCK_SIZE - 1L);
+		int length = (int) Math.min(WINDOW_SIZE,
+				this.cipherSize - blockStart);
+
+		byte[] iv = new byte[BLOCK_SIZE];
+		if (blockStart > 0) {
+			readFully(ByteBuffer.wrap(iv), blockStart - BLOCK_SIZE);
+		}
+
+		this.cipherText.clear();
+		this.cipherText.limit(length);
+		readFully(this.cipherText, blockStart);
+
+		try {
+			Cipher c = KeyBag.getCipher(KeyBag.FILE_CIPHER,
+					Cipher.DECRYPT_MODE, this.protectionClass);
+			c.init(Cipher.DECRYPT_MODE, this.key, new IvParameterSpec(iv));
+			this.windowLength = c.doFinal(this.cipherText.array(), 0,
+					length, this.window, 0);
+		} catch (GeneralSecurityException e) {
+			this.windowStart = -1;
+			throw new IOException("Unable to decrypt block at "
+					+ blockStart, e);
+		}
+		this.windowStart = blockStart;
+	}
+
+	private void readFully(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.source.read(buffer, at);
+			if (read < 0) {
+				throw new IOException("Unexpected end of file at " + at);
+			}
+			at += read;
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		ensureOpen();
+		return this.position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws
+		IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	/* The plaintext size, without the CBC padding when it is known. */
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return this.plainSize;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.source.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.source.close();
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (! this.source.isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -50,23 +50,18 @@ package me.bsdtrhodes.iExtractor;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.text.ParseException;
-
-import org.xml.sax.SAXException;
 
 import com.dd.plist.NSArray;
 import com.dd.plist.NSNumber;
 import com.dd.plist.NSData;
 import com.dd.plist.NSDictionary;
 import com.dd.plist.NSObject;
-import com.dd.plist.PropertyListParser;
 import com.dd.plist.UID;
 
 /*
@@ -80,82 +75,175 @@ public class EncryptedFile {
     private Path contentFile;
 
     private int protectionClass;
+    private long size = -1L;
     private byte[] encryptionKey;
     Phone iPhone;
 
     public EncryptedFile(Path fileID, Phone thePhone, NSDictionary dataBlob) {
-    	this.data = dataBlob;
     	this.iPhone = thePhone;
+    	this.contentFile = fileID;
+    	this.load(dataBlob);
+    }
+
+    /*
+     * Straight from a Manifest row. The blob normally goes through the
+     * ManifestBlobDecoder, which skips building the object graph; the
+     * full parser is only used when the decoder gives up.
+     */
+    public EncryptedFile(Path fileID, Phone thePhone, ManifestEntry entry)
+    		throws ExceptionManager {
+    	this.iPhone = thePhone;
+    	this.contentFile = fileID;
+    	ManifestBlobDecoder decoder = ManifestBlobDecoder.forThread();
+    	if (decoder.decode(entry.getFileBlob())) {
+    		this.protectionClass = decoder.getProtectionClass();
+    		this.size = decoder.getSize();
+    		/* No key at all, decrypting it will fail rather than guess. */
+    		if (decoder.hasEncryptionKey()) {
+    			this.encryptionKey = new byte[40];
+    			System.arraycopy(decoder.getEncryptionKey(), 0,
+    				this.encryptionKey, 0, 40);
+    		}
+    	} else {
+    		this.load(entry.getPropertyList());
+    	}
+    }
+
+    /* Already decoded, for example a ManifestTable row. */
+    EncryptedFile(Path fileID, Phone thePhone, int protectionClass, long size,
+    	byte[] encryptionKey) {
+    	this.iPhone = thePhone;
+    	this.contentFile = fileID;
+    	this.protectionClass = protectionClass;
+    	this.size = size;
+    	this.encryptionKey = encryptionKey;
+    }
+
+    private void load(NSDictionary dataBlob) {
+    	this.data = dataBlob;
     	this.objects = (NSArray)
-			this.data.objectForKey("$objects");
-		this.properties = (NSDictionary)
-			getObject((UID) ((NSDictionary)
-			data.objectForKey("$top")).objectForKey("root"));
-		this.protectionClass = ((NSNumber)
-		this.properties.objectForKey("ProtectionClass")).intValue();
-		this.contentFile = fileID;
-		this.encryptionKey = new byte[40];
-		ByteBuffer encryptionKeyBuffer =
-			ByteBuffer.wrap(this.encryptionKey);
-		((NSData) ((NSDictionary) getObject((UID)
-			properties.objectForKey("EncryptionKey"))).objectForKey
-			("NS.data")).getBytes(encryptionKeyBuffer, 4, 40);
-    }
-
-		/* An encrypted file is potentially every file and dir in the backup. */
+    		this.data.objectForKey("$objects");
+    	this.properties = (NSDictionary)
+    		getObject((UID) ((NSDictionary)
+    		data.objectForKey("$top")).objectForKey("root"));
+    	this.protectionClass = ((NSNumber)
+    		this.properties.objectForKey("ProtectionClass")).intValue();
+    	this.size = readSize();
+    	/* No key at all, decrypting it will fail rather than guess. */
+    	NSObject keyRef = properties.objectForKey("EncryptionKey");
+    	if (! (keyRef instanceof UID)) {
+    		return;
+    	}
+    	this.encryptionKey = new byte[40];
+    	ByteBuffer encryptionKeyBuffer =
+    		ByteBuffer.wrap(this.encryptionKey);
+    	((NSData) ((NSDictionary) getObject((UID) keyRef)).objectForKey
+    		("NS.data")).getBytes(encryptionKeyBuffer, 4, 40);
+    }
+
+    /* An encrypted file is potentially every file and dir in the backup. */
     public EncryptedFile(Path fileID, Path theDatabase, Phone iPhone)
-	    	throws Exception {
-	    	this.iPhone = iPhone;
-	
-	    	/* Try to connect to the DB and get the binary "blob" for the file. */
-			try (DatabaseFileManager dbMGR = new
-					DatabaseFileManager(theDatabase);
-				Connection conn = dbMGR.getConnection();
-				PreparedStatement statement = conn
-						.prepareStatement(DatabaseQueriesManager
-						.getEncFileQuery())) {
-
-				statement.setString(1, "%" + fileID.getFileName()
-						.toString() + "%");
-				try (ResultSet	result = statement.executeQuery()) {
-	
-				this.data = (NSDictionary)
-					PropertyListParser.parse(result.getBinaryStream(4));
-				this.objects = (NSArray)
-					this.data.objectForKey("$objects");
-				this.properties = (NSDictionary)
-					getObject((UID) ((NSDictionary)
-					data.objectForKey("$top")).objectForKey("root"));
-				this.protectionClass = ((NSNumber)
-					this.properties.objectForKey("ProtectionClass")).intValue();
-				this.contentFile = fileID;
-	
-				this.encryptionKey = new byte[40];
-				ByteBuffer encryptionKeyBuffer =
-					ByteBuffer.wrap(this.encryptionKey);
-				((NSData) ((NSDictionary) getObject((UID)
-					properties.objectForKey("EncryptionKey"))).objectForKey
-					("NS.data")).getBytes(encryptionKeyBuffer, 4, 40);
-
-			} catch (IOException | SQLException | SAXException | ParseException
-					e) {
-				throw new ExceptionManager("Failure trying to access file"
-					+ " encryption data from the database.", e, true);
-			}
-		}
-	}
-
-	    private NSObject getObject(UID uid) {
-	    	return this.objects.getArray()[uid.getBytes()[0]];
-	    }
+    		throws Exception {
+    	this(fileID, iPhone, lookup(fileID, theDatabase));
+    }
+
+    /*
+     * Resolve the file through a ManifestIndex the caller already has
+     * open, an exact fileID match on the primary key.
+     */
+    public EncryptedFile(Path fileID, ManifestIndex manifest, Phone iPhone)
+    		throws ExceptionManager {
+    	this(fileID, iPhone, manifest.require(fileID.getFileName()
+    		.toString()));
+    }
+
+    /* Get the binary "blob" for the file from its own connection. */
+    private static ManifestEntry lookup(Path fileID, Path theDatabase)
+    		throws ExceptionManager {
+    	try (ManifestIndex manifest = new ManifestIndex(theDatabase)) {
+    		return manifest.require(fileID.getFileName().toString());
+    	}
+    }
+
+    private NSObject getObject(UID uid) {
+    	return this.objects.getArray()[uid.getBytes()[0]];
+    }
+
+    /* The real (unpadded) size, -1 if the blob does not say. */
+    private long readSize() {
+    	NSObject fileSize = this.properties.objectForKey("Size");
+    	if (fileSize instanceof NSNumber) {
+    		return ((NSNumber) fileSize).longValue();
+    	}
+    	return -1L;
+    }
+
+    int getProtectionClass() {
+    	return this.protectionClass;
+    }
+
+    /* The real (unpadded) size, -1 if the blob does not say. */
+    long getSize() {
+    	return this.size;
+    }
+
+    byte[] getEncryptionKey() {
+    	return this.encryptionKey;
+    }
 
     public void extract(Path destination) throws ExceptionManager {
+    	extract(destination, null);
+    }
+
+    /* Extract, hashing the plaintext into digests (may be null). */
+    public void extract(Path destination, FileDigests digests) throws
+    	ExceptionManager {
     	try {
-            this.iPhone.getKeyBag().get().decryptFile(this.protectionClass,
-            	this.encryptionKey, this.contentFile, destination);
+    		decryptTo(destination, digests);
         } catch (InvalidKeyException | IOException e) {
             throw new ExceptionManager("Failure extracting the file and file"
             	+ " key for: " + contentFile + " :", e, true);
         }
     }
+
+    /*
+     * Same as extract(), but failures are left to the caller, which can
+     * carry on with the next file.
+     */
+    void decryptTo(Path destination, FileDigests digests) throws
+    	IOException, InvalidKeyException, ExceptionManager {
+    	requireKey();
+    	this.iPhone.getKeyBag().get().decryptFile(this.protectionClass,
+    		this.encryptionKey, this.contentFile, destination, this.size,
+    		digests);
+    }
+
+    /*
+     * Read the file in place without writing anything to the restore
+     * directory. Only the requested byte ranges get decrypted, which is
+     * enough to look at a video header or a single SQLite page.
+     */
+    public SeekableByteChannel openChannel() throws ExceptionManager {
+    	try {
+    		requireKey();
+    		return this.iPhone.getKeyBag().get().openChannel(
+    			this.protectionClass, this.encryptionKey, this.contentFile,
+    			this.size);
+    	} catch (InvalidKeyException | IOException e) {
+    		throw new ExceptionManager("Failure opening the encrypted file"
+    			+ " " + contentFile + " :", e, false);
+    	}
+    }
+
+    private void requireKey() throws InvalidKeyException {
+    	if (this.encryptionKey == null) {
+    		throw new InvalidKeyException("The Manifest entry for "
+    			+ this.contentFile + " has no EncryptionKey");
+    	}
+    }
+
+    /* Same as openChannel(), for callers that want a stream. */
+    public InputStream openInputStream() throws ExceptionManager {
+    	return Channels.newInputStream(openChannel());
+    }
 }
\ No newline at end of file
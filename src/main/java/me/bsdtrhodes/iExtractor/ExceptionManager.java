@@ -80,6 +80,21 @@ public class ExceptionManager extends RuntimeException {
 	        			message, cause.getMessage());
 	        }
 	}
+
+	/* Not an error, just something worth having in the log. */
+	public static void logInfo(String message) {
+		LOGGER.log(Level.INFO, message);
+	}
+
+	/* Something went wrong, but not enough to stop for. */
+	public static void logWarning(String message) {
+		LOGGER.log(Level.WARNING, message);
+	}
+
+	public static void logWarning(String message, Throwable cause) {
+		LOGGER.log(Level.WARNING, message + ": " + cause);
+	}
+
 	public static void testLogging() {
         LOGGER.log(Level.INFO, "Test log: Is logging working?");
     }
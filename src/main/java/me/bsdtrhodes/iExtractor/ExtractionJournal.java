@@ -0,0 +1,166 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * A record of every file an extraction has finished, so a run that dies
+ * part way (power, a full disk, a fatal error) can be started again
+ * without redoing the work. One line is appended and flushed per file:
+ *
+ * size <TAB> md5 <TAB> path relative to the restore directory
+ *
+ * Opening the journal replays it; a file counts as done when it is in
+ * the journal and still has the recorded size. With
+ * -DiExtractor.verifyJournal=true its MD5 is checked as well. A line
+ * cut short by a crash has no newline and is removed from the file,
+ * anything that does not parse is ignored, and later lines win over
+ * earlier ones.
+ */
+public class ExtractionJournal {
+	private final Path restoreLocation;
+	private final Map<String, Entry> done = new ConcurrentHashMap<>();
+	private final BufferedWriter journal;
+
+	public ExtractionJournal(Path restoreLocation) throws ExceptionManager {
+		this.restoreLocation = restoreLocation;
+		Path journalFile = FilePairManager.EXTRACTIONJOURNAL
+				.getDecryptedPath(restoreLocation);
+		try {
+			byte[] contents = Files.exists(journalFile) ? Files
+					.readAllBytes(journalFile) : new byte[0];
+			int end = contents.length;
+			while (end > 0 && contents[end - 1] != '\n') {
+				end--;
+			}
+			if (end < contents.length) {
+				/* Drop the torn line, or the next record would join it. */
+				try (FileChannel channel = FileChannel.open(journalFile,
+						StandardOpenOption.WRITE)) {
+					channel.truncate(end);
+				}
+			}
+			/* Cut at a newline first, a torn line may end mid character. */
+			replay(new String(contents, 0, end, StandardCharsets.UTF_8));
+			this.journal = Files.newBufferedWriter(journalFile,
+					StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to open the extraction"
+					+ " journal", e, false);
+		}
+		if (! this.done.isEmpty()) {
+			ExceptionManager.logInfo("Resuming extraction, "
+					+ this.done.size() + " files are already done");
+		}
+	}
+
+	/* Whole lines only, the constructor has cut off any torn one. */
+	private void replay(String contents) {
+		for (String line : contents.split("\n")) {
+			String[] fields = line.split("\t", 3);
+			if (fields.length != 3) {
+				continue;
+			}
+			try {
+				this.done.put(fields[2], new Entry(Long.parseLong(
+						fields[0]), fields[1]));
+			} catch (NumberFormatException e) {
+				/* Not one of ours, skip it. */
+			}
+		}
+	}
+
+	/*
+	 * Has output already been extracted? Cheap: one stat, unless the
+	 * MD5 is to be checked too.
+	 */
+	public boolean isDone(Path output) {
+		Entry entry = this.done.get(key(output));
+		if (entry == null) {
+			return false;
+		}
+		try {
+			if (Files.size(output) != entry.size) {
+				return false;
+			}
+			if (ContextManager.getVerifyJournal() && ! entry.md5.isEmpty()) {
+				return entry.md5.equals(Phone.getFileHash("MD5", output
+						.toString()));
+			}
+			return true;
+		} catch (IOException | NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+
+	/* The MD5 recorded for output, null if it is not in the journal. */
+	public String getMD5(Path output) {
+		Entry entry = this.done.get(key(output));
+		return (entry == null || entry.md5.isEmpty()) ? null : entry.md5;
+	}
+
+	/* output is complete, flushed right away in case we die. */
+	public synchronized void record(Path output, FileDigests digests)
+			throws ExceptionManager {
+		String key = key(output);
+		String md5 = digests.get("MD5");
+		Entry entry = new Entry(digests.getLength(), md5 == null ? "" : md5);
+		try {
+			this.journal.append(Long.toString(entry.size)).append('\t')
+					.append(entry.md5).append('\t').append(key)
+					.append('\n');
+			this.journal.flush();
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to write to the extraction"
+					+ " journal", e, false);
+		}
+		this.done.put(key, entry);
+	}
+
+	private String key(Path output) {
+		return this.restoreLocation.relativize(output).toString();
+	}
+
+	private static final class Entry {
+		private final long size;
+		private final String md5;
+
+		Entry(long size, String md5) {
+			this.size = size;
+			this.md5 = md5;
+		}
+	}
+}
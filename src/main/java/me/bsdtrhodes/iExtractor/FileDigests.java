@@ -0,0 +1,209 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A set of message digests that are fed while a file is being decrypted
+ * or copied, so the plaintext hashes come for free instead of reading
+ * every file a second time. Which algorithms are used comes from
+ * ContextManager.getDigestAlgorithms().
+ */
+public class FileDigests {
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> COPY_BUFFER =
+			ThreadLocal.withInitial(() -> ByteBuffer
+			.allocateDirect(COPY_BUFFER_SIZE));
+
+	private final Map<String, MessageDigest> digests =
+			new LinkedHashMap<>();
+	private Map<String, String> results = null;
+	private long length = 0;
+	/* False when a linked file was not read, there are no hashes. */
+	private boolean hashed = true;
+
+	public FileDigests(List<String> algorithms) throws ExceptionManager {
+		for (String algorithm : algorithms) {
+			try {
+				this.digests.put(algorithm,
+					MessageDigest.getInstance(algorithm));
+			} catch (NoSuchAlgorithmException e) {
+				throw new ExceptionManager("Unsupported digest algorithm: "
+					+ algorithm, e, false);
+			}
+		}
+	}
+
+	/* Digests for the algorithms the user asked for. */
+	public static FileDigests create() throws ExceptionManager {
+		return new FileDigests(ContextManager.getDigestAlgorithms());
+	}
+
+	/* Feed the remaining bytes of data, its position is left alone. */
+	public void update(ByteBuffer data) {
+		for (MessageDigest md : this.digests.values()) {
+			md.update(data.duplicate());
+		}
+		this.length += data.remaining();
+	}
+
+	public void update(byte[] data, int offset, int count) {
+		for (MessageDigest md : this.digests.values()) {
+			md.update(data, offset, count);
+		}
+		this.length += count;
+	}
+
+	/*
+	 * Wrap an output stream so everything written is digested too. Only
+	 * the first limit bytes count, which keeps the CBC padding out of the
+	 * hash when the stream engine writes it before truncating.
+	 */
+	public OutputStream tee(OutputStream out, long limit) {
+		return new FilterOutputStream(out) {
+			private long remaining = (limit < 0) ? Long.MAX_VALUE : limit;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (this.remaining > 0) {
+					update(new byte[] { (byte) b }, 0, 1);
+					this.remaining--;
+				}
+				this.out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws
+				IOException {
+				int counted = (int) Math.min(len, this.remaining);
+				if (counted > 0) {
+					update(b, off, counted);
+					this.remaining -= counted;
+				}
+				this.out.write(b, off, len);
+			}
+		};
+	}
+
+	/* Copy a plain file, hashing it on the way through. */
+	public void copy(Path source, Path destination) throws IOException {
+		ByteBuffer buffer = COPY_BUFFER.get();
+		try (FileChannel in = FileChannel.open(source,
+				StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(destination,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			buffer.clear();
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				update(buffer);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+	}
+
+	/*
+	 * Link a plain file instead of copying it when FileLinker is enabled.
+	 * The source is then only read to hash it, or not at all with
+	 * hashing of links turned off.
+	 */
+	public void link(Path source, Path destination) throws IOException {
+		if (! FileLinker.link(source, destination)) {
+			copy(source, destination);
+			return;
+		}
+		if (! ContextManager.getHashLinks()) {
+			this.hashed = false;
+			this.length = Files.size(source);
+			return;
+		}
+		try (FileChannel in = FileChannel.open(source,
+				StandardOpenOption.READ)) {
+			hash(in);
+		}
+	}
+
+	/*
+	 * Hash a whole file from its start, for output that could not be
+	 * hashed on the way through. Just written, it is still in the cache.
+	 */
+	public void hash(FileChannel channel) throws IOException {
+		ByteBuffer buffer = COPY_BUFFER.get();
+		long position = 0;
+		buffer.clear();
+		int count;
+		while ((count = channel.read(buffer, position)) != -1) {
+			position += count;
+			buffer.flip();
+			update(buffer);
+			buffer.clear();
+		}
+	}
+
+	/* Finish the digests (once) and return algorithm -> hex string. */
+	public synchronized Map<String, String> getResults() {
+		if (! this.hashed) {
+			return Collections.emptyMap();
+		}
+		if (this.results == null) {
+			Map<String, String> done = new LinkedHashMap<>();
+			for (Map.Entry<String, MessageDigest> entry :
+					this.digests.entrySet()) {
+				MessageDigest md = entry.getValue();
+				String fx = "%0" + (md.getDigestLength() * 2) + "x";
+				done.put(entry.getKey(), String.format(fx,
+					new BigInteger(1, md.digest())));
+			}
+			this.results = Collections.unmodifiableMap(done);
+		}
+		return this.results;
+	}
+
+	public String get(String algorithm) {
+		return getResults().get(algorithm);
+	}
+
+	/* Number of bytes that went through the digests. */
+	public long getLength() {
+		return this.length;
+	}
+}
@@ -0,0 +1,129 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/*
+ * Put a file from an unencrypted backup in the restore directory
+ * without copying it. A hard link costs one directory entry when the
+ * restore directory is on the same filesystem as the backup; a
+ * symbolic link works across filesystems but only while the backup is
+ * still there. -DiExtractor.linkMode=HARDLINK or SYMLINK turns this on,
+ * COPY (the default) keeps the old behaviour.
+ *
+ * A hard link is the backup file itself: changing the extracted file
+ * changes the backup too.
+ *
+ * When links cannot be made at all (another filesystem, no permission
+ * for symbolic links) the caller copies instead, and after the first
+ * such failure no more links are tried. Errors about one file, such as
+ * a missing source, are thrown as they would be for a copy.
+ */
+public final class FileLinker {
+
+	public enum Mode {
+		COPY, HARDLINK, SYMLINK
+	}
+
+	private static volatile boolean linksFailed = false;
+
+	/* Reasons the OS gives when this kind of link is not possible here. */
+	private static final String[] UNSUPPORTED = {
+		"cross-device", "different disk drive", "not supported",
+		"not permitted", "privilege"
+	};
+
+	private FileLinker() {
+	}
+
+	/*
+	 * Link destination to source. False if the caller has to copy, an
+	 * existing destination is still an error.
+	 */
+	public static boolean link(Path source, Path destination)
+			throws IOException {
+		Mode mode = ContextManager.getLinkMode();
+		if (mode == Mode.COPY || linksFailed) {
+			return false;
+		}
+		try {
+			if (mode == Mode.HARDLINK) {
+				Files.createLink(destination, source);
+			} else {
+				Files.createSymbolicLink(destination, source
+						.toAbsolutePath());
+			}
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return linksUnsupported(mode, destination, e);
+		} catch (FileSystemException e) {
+			if (! isUnsupported(e)) {
+				throw e;
+			}
+			return linksUnsupported(mode, destination, e);
+		}
+	}
+
+	/* Stop linking for the rest of the run. */
+	private static boolean linksUnsupported(Mode mode, Path destination,
+			Exception cause) {
+		linksFailed = true;
+		ExceptionManager.logWarning("Unable to " + mode + " " + destination
+				+ ", copying files instead", cause);
+		return false;
+	}
+
+	/*
+	 * Only a plain FileSystemException says anything about the
+	 * filesystem; the subclasses (no such file, access denied, already
+	 * exists) are about this one file.
+	 */
+	private static boolean isUnsupported(FileSystemException e) {
+		if (e.getClass() != FileSystemException.class
+				|| e.getReason() == null) {
+			return false;
+		}
+		String reason = e.getReason().toLowerCase(Locale.ROOT);
+		for (String match : UNSUPPORTED) {
+			if (reason.contains(match)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Link, or copy when a link cannot be made. No hashes. */
+	public static void place(Path source, Path destination)
+			throws IOException {
+		if (! link(source, destination)) {
+			Files.copy(source, destination);
+		}
+	}
+}
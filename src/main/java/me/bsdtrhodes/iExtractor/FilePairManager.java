@@ -33,16 +33,14 @@ import java.nio.file.Path;
  * the manager deal with these files.
  */
 public enum FilePairManager {
-    CONTACTS("31", "31bb7ba8914766d4ba40d6dfb6113c8b614be442",
+    CONTACTS("HomeDomain", "Library/AddressBook/AddressBook.sqlitedb",
     		"contacts.db"),
-    MESSAGES("3d", "3d0d7e5fb2ce288813306e4d4636395e047a3d28",
-    		"messages.db"),
-    VOICEMAILS("99", "992df473bbb9e132f4b3b6e4d33f72171e97bc7a",
+    MESSAGES("HomeDomain", "Library/SMS/sms.db", "messages.db"),
+    VOICEMAILS("HomeDomain", "Library/Voicemail/voicemail.db",
     		"voicemails.db"),
-    CALLS("5a", "5a4935c78a5255723f707230a451d79c540d2741",
+    CALLS("HomeDomain", "Library/CallHistoryDB/CallHistory.storedata",
     		"callhistory.db"),
-    SAFARI("1a", "1a0e7afc19d307da602ccdcece51af33afe92c53",
-    		"safarihistory.db"),
+    SAFARI("HomeDomain", "Library/Safari/History.db", "safarihistory.db"),
     MANIFEST(null, "Manifest.db", "Manifest.db"),
     CONTACTSCSV(null, "Contacts.csv", "Contacts.csv"),
     CONTACTSHTML(null, "Contacts.html", "Contacts.html"),
@@ -53,14 +51,20 @@ public enum FilePairManager {
     VOICEMAILSCSV(null, "Voicemails.csv", "Voicemails.csv"),
     VOICEMAILSHTML(null, "Voicemails.html", "Voicemails.html"),
     SAFARICSV(null, "Safarihistory.csv", "Safarihistory.csv"),
-    SAFARIHTML(null, "Safarihistory.html", "Safarihistory.html");
+    SAFARIHTML(null, "Safarihistory.html", "Safarihistory.html"),
+    HASHMANIFEST(null, "HashManifest.csv", "HashManifest.csv"),
+    EXTRACTIONJOURNAL(null, ".extraction-journal", ".extraction-journal");
 
 	/*
 	 * This works as:
+	 * domain - Backup domain of the file, null for our own files.
+	 * relativePath - Path inside the domain, or our own file name.
 	 * subDir - This is where our file is found.
 	 * encDBFile - The encrypted file, hash name is stored here.
 	 * decDBFile - Friendly, decrypted filename on disk.
 	 */
+    private final String domain;
+    private final String relativePath;
     private final String subDir;
     private final String encDBFile;
     private final String decDBFile;
@@ -72,13 +76,20 @@ public enum FilePairManager {
      * will translate to the encrypted Contacts file. And giving it
      * the restore location will provide "contacts.db" which makes
      * this interface very simple and extendible. Want to add the
-     * FacebookMessenger encrypted file, add it above with the
-     * same format and use it everywhere.
+     * FacebookMessenger encrypted file, add its domain and path above
+     * and use it everywhere, the hash name is worked out from those.
      */
-    FilePairManager(String subDir, String encDBFile, String decDBFile) {
-        this.subDir = subDir;
-        this.encDBFile = encDBFile;
+    FilePairManager(String domain, String relativePath, String decDBFile) {
+        this.domain = domain;
+        this.relativePath = relativePath;
         this.decDBFile = decDBFile;
+        if (domain == null) {
+            this.subDir = null;
+            this.encDBFile = relativePath;
+        } else {
+            this.encDBFile = BackupFileResolver.fileID(domain, relativePath);
+            this.subDir = encDBFile.substring(0, 2);
+        }
     }
 
     public Path getEncryptedPath(Path backupLocation) {
@@ -100,4 +111,12 @@ public enum FilePairManager {
     public String getDecryptedDB() {
         return decDBFile;
     }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
 }
\ No newline at end of file
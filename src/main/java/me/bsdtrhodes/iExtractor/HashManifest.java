@@ -0,0 +1,117 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/*
+ * The hash manifest is a CSV file next to the extracted data that lists
+ * every file written along with its size and the digests worked out
+ * while it was decrypted or copied. Extraction can run on several
+ * threads, so recording is synchronized.
+ *
+ * A second run into the same directory appends to the manifest. If it
+ * uses other digests the columns would no longer match, so the old
+ * manifest is renamed to HashManifest.csv.1 (.2, ...) and a new one is
+ * started.
+ */
+public class HashManifest {
+	private final Path restoreLocation;
+	private final List<String> algorithms;
+	private final BufferedWriter manifest;
+
+	public HashManifest(Path restoreLocation) throws ExceptionManager {
+		this.restoreLocation = restoreLocation;
+		this.algorithms = ContextManager.getDigestAlgorithms();
+		Path manifestFile = FilePairManager.HASHMANIFEST
+				.getDecryptedPath(restoreLocation);
+
+		StringBuilder header = new StringBuilder("File,Size");
+		for (String algorithm : this.algorithms) {
+			header.append(",").append(algorithm);
+		}
+
+		try {
+			if (Files.exists(manifestFile) && ! header.toString().equals(
+					readHeader(manifestFile))) {
+				int n = 1;
+				Path old = manifestFile.resolveSibling(manifestFile
+						.getFileName() + "." + n);
+				while (Files.exists(old)) {
+					old = manifestFile.resolveSibling(manifestFile
+							.getFileName() + "." + ++n);
+				}
+				Files.move(manifestFile, old);
+				ExceptionManager.logInfo("The digests changed, the old hash"
+						+ " manifest is now " + old.getFileName());
+			}
+			boolean isNew = ! Files.exists(manifestFile);
+			this.manifest = Files.newBufferedWriter(manifestFile,
+					StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			if (isNew) {
+				this.manifest.append(header).append("\n");
+				this.manifest.flush();
+			}
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to create the hash manifest",
+					e, false);
+		}
+	}
+
+	private static String readHeader(Path manifestFile) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(manifestFile,
+				StandardCharsets.UTF_8)) {
+			return reader.readLine();
+		}
+	}
+
+	/* Add one extracted file, flushed right away in case we die. */
+	public synchronized void record(Path file, FileDigests digests)
+			throws ExceptionManager {
+		try {
+			this.manifest.append(BackupManager.escapeCsv(this
+					.restoreLocation.relativize(file).toString()));
+			this.manifest.append(",").append(Long.toString(digests
+					.getLength()));
+			for (String algorithm : this.algorithms) {
+				String hash = digests.get(algorithm);
+				this.manifest.append(",").append(hash == null ? "" : hash);
+			}
+			this.manifest.append("\n");
+			this.manifest.flush();
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to write to the hash"
+					+ " manifest", e, false);
+		}
+	}
+}
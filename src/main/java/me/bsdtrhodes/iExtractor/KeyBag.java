@@ -63,22 +63,58 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KeyBag {
     private static final Set<String> CLASS_KEY_TAGS = Set.of("CLAS", "WRAP",
     	"WPKY", "KTYP", "PBKY");
     private static final int UUID_LENGTH = 16;
     private static final int WRAP_PASSCODE = 2;
+    private static final String WRAP_CIPHER = "AESWrap";
+    static final String FILE_CIPHER = "AES/CBC/NoPadding";
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0"
+    	.getBytes(StandardCharsets.US_ASCII);
+
+    /*
+     * Cipher.getInstance() does a provider lookup every time it is called,
+     * which adds up over a few hundred thousand files. Each thread keeps
+     * its own ciphers, keyed by transformation, mode and protection class,
+     * and re-initializes them per file. A cipher handed out by
+     * decryptStream() belongs to the calling thread until the stream
+     * is closed.
+     */
+    private static final ThreadLocal<Map<String, Cipher>> CIPHER_POOL =
+    	ThreadLocal.withInitial(HashMap::new);
+
+    /*
+     * Buffers for the channel engine, one input and two outputs per
+     * thread. The outputs leave room for a block the cipher is holding.
+     */
+    private static final int CHANNEL_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer[]> CHANNEL_BUFFERS =
+    	ThreadLocal.withInitial(() -> new ByteBuffer[] {
+    		ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE),
+    		ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE + 16),
+    		ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE + 16) });
+
+    /* STREAM is CipherInputStream, CHANNEL is the FileChannel engine. */
+    public enum DecryptEngine {
+    	STREAM,
+    	CHANNEL
+    }
     private Set<String> hashSet;
     public int type;
     public byte[] uuid;
@@ -87,6 +123,10 @@ public class KeyBag {
     	new HashMap<>();
     public final Map<String, byte[]> attrs = new HashMap<>();
 
+    /* Unlocked class keys, built once so each file only unwraps its own. */
+    private final Map<ByteBuffer, SecretKeySpec> classKeySpecs =
+    	new ConcurrentHashMap<>();
+
     private boolean unlocked = false;
 
     public KeyBag(NSData data) throws ExceptionManager {
@@ -232,23 +272,54 @@ public class KeyBag {
             byte[] keyEncryptionKey = ((KeyParameter)
             	gen.generateDerivedParameters(32 * 8)).getKey();
 
-            Cipher c = Cipher.getInstance("AESWrap");
+            Cipher c = Cipher.getInstance(WRAP_CIPHER);
 
+            /*
+             * AESWrap carries its own integrity check, a wrong passcode
+             * fails right here instead of turning into garbage later.
+             * Nothing is kept unless every class key unwraps.
+             */
+            Map<Map<String, byte[]>, byte[]> unwrapped = new HashMap<>();
             for (Map<String, byte[]> classKey : this.classKeys.values()) {
                 if (!classKey.containsKey("WPKY")) continue;
                 int wrap = ByteBuffer.wrap(classKey.get("WRAP")).getInt();
                 if ((wrap & WRAP_PASSCODE) != 0) {
                     c.init(Cipher.UNWRAP_MODE, new
                     	SecretKeySpec(keyEncryptionKey, "AES"));
-                    Key contentEncryptionKey = c.unwrap(classKey.get("WPKY"),
-                    	"AES", Cipher.SECRET_KEY);
+                    Key contentEncryptionKey;
+                    try {
+                    	contentEncryptionKey = c.unwrap(classKey.get("WPKY"),
+                    		"AES", Cipher.SECRET_KEY);
+                    } catch (InvalidKeyException e) {
+                    	throw new InvalidKeyException("The backup password"
+                    		+ " is incorrect", e);
+                    }
 
                     if (contentEncryptionKey != null) {
-                        classKey.put("KEY", contentEncryptionKey.getEncoded());
+                        unwrapped.put(classKey,
+                        	contentEncryptionKey.getEncoded());
                     }
                 }
             }
+            if (unwrapped.isEmpty()) {
+            	throw new InvalidKeyException("The backup password is"
+            		+ " incorrect, no class key could be unwrapped");
+            }
+            for (Map.Entry<Map<String, byte[]>, byte[]> entry :
+            		unwrapped.entrySet()) {
+            	entry.getKey().put("KEY", entry.getValue());
+            	this.classKeySpecs.put(ByteBuffer.wrap(entry.getKey()
+            		.get("CLAS")), new SecretKeySpec(entry.getValue(), "AES"));
+            }
             this.unlocked = true;
+
+            if (ContextManager.getKeyCache()) {
+            	try {
+            		KeyCache.store(this.cacheId(), this.unlockedClassKeys());
+            	} catch (ExceptionManager e) {
+            		/* Logged, the next run just derives the keys again. */
+            	}
+            }
         } catch (NoSuchAlgorithmException | InvalidKeySpecException |
         	NoSuchPaddingException e) {
         	throw new ExceptionManager("Issue decrypting backup. System "
@@ -256,15 +327,131 @@ public class KeyBag {
         }
     }
 
+    /*
+     * Decrypt just the first block of Manifest.db and look for the
+     * SQLite header, so bad keys are caught before the whole file is
+     * written out.
+     */
+    public boolean checkManifest(int protectionClass, byte[] persistentKey,
+    	Path manifestDB) throws ExceptionManager, IOException {
+        byte[] pc = ByteBuffer.allocate(4).putInt(protectionClass).array();
+        ByteBuffer block = ByteBuffer.allocate(SQLITE_MAGIC.length);
+        try (FileChannel in = FileChannel.open(manifestDB,
+        		StandardOpenOption.READ)) {
+        	while (block.hasRemaining() && in.read(block) >= 0) {
+        		/* Keep reading. */
+        	}
+        }
+        if (block.hasRemaining()) {
+        	return false;
+        }
+        try {
+        	Key key = this.unwrapSpecForClass(pc, persistentKey);
+        	Cipher c = getCipher(FILE_CIPHER, Cipher.DECRYPT_MODE, pc);
+        	c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(new
+        		byte[16]));
+        	return Arrays.equals(SQLITE_MAGIC, c.doFinal(block.array()));
+        } catch (InvalidKeyException e) {
+        	return false;
+        } catch (InvalidAlgorithmParameterException | IllegalBlockSizeException
+        		| BadPaddingException e) {
+        	throw new ExceptionManager("Unable to check the Manifest"
+        		+ " database", e, true);
+        }
+    }
+
+    /*
+     * Unlock with class keys saved by an earlier run, skipping the
+     * passcode entirely. False (still locked) when the cache has nothing
+     * for this keybag.
+     */
+    public boolean unlockFromCache() throws ExceptionManager {
+    	Map<ByteBuffer, byte[]> cached;
+    	try {
+    		cached = KeyCache.load(this.cacheId());
+    	} catch (ExceptionManager e) {
+    		return false;
+    	}
+    	if (cached == null || cached.isEmpty()) {
+    		return false;
+    	}
+    	for (Map.Entry<ByteBuffer, byte[]> entry : cached.entrySet()) {
+    		Map<String, byte[]> classKey = this.classKeys.get(entry.getKey());
+    		if (classKey == null) continue;
+    		classKey.put("KEY", entry.getValue());
+    		this.classKeySpecs.put(entry.getKey(), new
+    			SecretKeySpec(entry.getValue(), "AES"));
+    	}
+    	this.unlocked = true;
+    	return true;
+    }
+
+    /* Names this keybag in the key cache, the passcode never goes in. */
+    private byte[] cacheId() throws ExceptionManager {
+    	try {
+    		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    		digest.update(this.uuid);
+    		for (String tag : new String[] {"DPSL", "SALT", "DPIC", "ITER"}) {
+    			byte[] value = this.attrs.get(tag);
+    			if (value != null) digest.update(value);
+    		}
+    		return digest.digest();
+    	} catch (NoSuchAlgorithmException e) {
+    		throw new ExceptionManager("Unable to name the key cache entry",
+    			e, false);
+    	}
+    }
+
+    private Map<ByteBuffer, byte[]> unlockedClassKeys() {
+    	Map<ByteBuffer, byte[]> unlocked = new HashMap<>();
+    	for (Map.Entry<ByteBuffer, Map<String, byte[]>> entry :
+    			this.classKeys.entrySet()) {
+    		byte[] key = entry.getValue().get("KEY");
+    		if (key != null) unlocked.put(entry.getKey(), key);
+    	}
+    	return unlocked;
+    }
+
     public byte[] unwrapKeyForClass(byte[] protectionClass, byte[]
+    	persistentKey) throws ExceptionManager, InvalidKeyException {
+        return this.unwrapSpecForClass(protectionClass, persistentKey)
+        	.getEncoded();
+    }
+
+    private Key unwrapSpecForClass(byte[] protectionClass, byte[]
     	persistentKey) throws ExceptionManager, InvalidKeyException {
         if (this.isLocked()) {
         	WindowManager.critical(ContextManager.getPrimaryStage(),
         			"Fatal Error", "Unable to decrypt the phone").show();
         }
 
-        Map<String, byte[]> classKeyMap =
-        	this.classKeys.get(ByteBuffer.wrap(protectionClass));
+        SecretKeySpec classKeySpec = this.getClassKeySpec(protectionClass);
+
+        if (persistentKey.length != 0x28) {
+        	WindowManager.critical(ContextManager.getPrimaryStage(),
+        			"Falal Error", "Invalid class key length").show();
+        }
+
+        Cipher c = getCipher(WRAP_CIPHER, Cipher.UNWRAP_MODE,
+        	protectionClass);
+        c.init(Cipher.UNWRAP_MODE, classKeySpec);
+        try {
+        	return c.unwrap(persistentKey, "AES", Cipher.SECRET_KEY);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ExceptionManager("Unsupported encryption type found!",
+            	e, true);
+        }
+    }
+
+    /* Look up (and remember) the unlocked key for a protection class. */
+    private SecretKeySpec getClassKeySpec(byte[] protectionClass) {
+        ByteBuffer classId = ByteBuffer.wrap(protectionClass);
+        SecretKeySpec classKeySpec = this.classKeySpecs.get(classId);
+        if (classKeySpec != null) {
+        	return classKeySpec;
+        }
+
+        Map<String, byte[]> classKeyMap = this.classKeys.get(classId);
         if (classKeyMap == null) {
         	WindowManager.critical(ContextManager.getPrimaryStage(),
         			"Fatal Error", "Required protection class was not found")
@@ -278,36 +465,42 @@ public class KeyBag {
         			+ " protection class.").show();
         }
 
-        if (persistentKey.length != 0x28) {
-        	WindowManager.critical(ContextManager.getPrimaryStage(),
-        			"Falal Error", "Invalid class key length").show();
-        }
+        classKeySpec = new SecretKeySpec(classKey, "AES");
+        this.classKeySpecs.put(classId, classKeySpec);
+        return classKeySpec;
+    }
 
-        try {
-        	Cipher c = Cipher.getInstance("AESWrap");
-        	c.init(Cipher.UNWRAP_MODE, new SecretKeySpec(classKey, "AES"));
-        	Key unwrappedKey = c.unwrap(persistentKey, "AES",
-        			Cipher.SECRET_KEY);
-        	return unwrappedKey.getEncoded();
-        	
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new ExceptionManager("Unsupported encryption type found!",
-            	e, true);
+    /* Hand out this thread's cipher for a transformation/mode/class. */
+    static Cipher getCipher(String transformation, int mode,
+    	byte[] protectionClass) throws ExceptionManager {
+        String poolKey = transformation + "/" + mode + "/"
+        	+ bytesToHex(protectionClass);
+        Map<String, Cipher> ciphers = CIPHER_POOL.get();
+        Cipher c = ciphers.get(poolKey);
+        if (c == null) {
+        	try {
+        		c = Cipher.getInstance(transformation);
+        	} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        		throw new ExceptionManager("Unsupported encryption type"
+        			+ " found!", e, true);
+        	}
+        	ciphers.put(poolKey, c);
         }
+        return c;
     }
 
     public InputStream decryptStream(byte[] protectionClass,
     	byte[] persistentKey, InputStream source) throws ExceptionManager,
     	InvalidKeyException {
-        byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
+        Key key = this.unwrapSpecForClass(protectionClass, persistentKey);
 
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
-            c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+            Cipher c = getCipher(FILE_CIPHER, Cipher.DECRYPT_MODE,
+            	protectionClass);
+            c.init(Cipher.DECRYPT_MODE, key,
             	new IvParameterSpec(new byte[16]));
             return new CipherInputStream(source, c);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException |
-        	InvalidAlgorithmParameterException e) {
+        } catch (InvalidAlgorithmParameterException e) {
             throw new ExceptionManager("Unsupported encryption type found!",
             	e, true);
         }
@@ -316,27 +509,256 @@ public class KeyBag {
     public void decryptFile(byte[] protectionClass, byte[] persistentKey,
     	Path source, Path destination, long size) throws IOException,
     	ExceptionManager, InvalidKeyException {
+        decryptFile(protectionClass, persistentKey, source, destination,
+        	size, null);
+    }
+
+    /*
+     * When digests is not null the plaintext is hashed as it goes by.
+     * The parallel engine finishes segments out of order, so its output
+     * is hashed in one pass afterwards, as is output whose padding is
+     * only known once the last block is decrypted.
+     */
+    public void decryptFile(byte[] protectionClass, byte[] persistentKey,
+    	Path source, Path destination, long size, FileDigests digests)
+    	throws IOException, ExceptionManager, InvalidKeyException {
+        /* Whole blocks only, a trailing partial block is dropped. */
+        long available = Files.size(source) & ~15L;
+        if (size != -1L && available < size) {
+        	ExceptionManager.logWarning(source + " holds " + available + " of "
+        		+ size + " bytes, the rest of " + destination.getFileName()
+        		+ " is zero filled");
+        }
+        if (ContextManager.getDecryptEngine() == DecryptEngine.CHANNEL) {
+        	long threshold = ContextManager.getParallelThreshold();
+        	if (threshold > 0 && Files.size(source) >= threshold) {
+        		decryptFileParallel(protectionClass, persistentKey, source,
+        			destination, size, digests);
+        	} else {
+        		decryptFileChannel(protectionClass, persistentKey, source,
+        			destination, size, digests);
+        	}
+        } else {
+        	decryptFileStream(protectionClass, persistentKey, source,
+        		destination, size, digests);
+        }
+    }
+
+    /* The original CipherInputStream engine, kept for comparison. */
+    private void decryptFileStream(byte[] protectionClass,
+    	byte[] persistentKey, Path source, Path destination, long size,
+    	FileDigests digests) throws IOException, ExceptionManager,
+    	InvalidKeyException {
         try (InputStream inputStream = Files.newInputStream(source);
         		InputStream decryptStream = decryptStream(protectionClass,
         				persistentKey, inputStream);
-        		OutputStream fileOutputStream = Files
-        				.newOutputStream(destination);
+        		OutputStream fileOutputStream = (digests == null
+        				|| size == -1L) ? Files.newOutputStream(destination)
+        				: digests.tee(Files.newOutputStream(destination),
+        				size);
         		BufferedOutputStream outputStream = new
         				BufferedOutputStream(fileOutputStream)) {
         	    decryptStream.transferTo(outputStream);
         	    outputStream.flush();
+        }
 
-                if (size != -1L) {
-            	    try (FileChannel channel = ((FileOutputStream)
-            	    		fileOutputStream).getChannel()) {
-            		    channel.truncate(size);
-                        long padding = size - channel.size();
-                        if (padding != 0 && padding < Integer.MAX_VALUE) {
-                            outputStream.write(new byte[(int) padding]);
-                        }
-                   }
-               }
-          }
+        /*
+         * Files.newOutputStream() has no channel, so reopen to trim. As
+         * before, a file without a size keeps its padding on this engine.
+         */
+        try (FileChannel channel = FileChannel.open(destination,
+        		StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        	if (size != -1L) {
+        		trimToSize(channel, size);
+        	} else if (digests != null) {
+        		digests.hash(channel);
+        	}
+        }
+    }
+
+    /*
+     * Decrypt with FileChannels and large direct buffers. Anything past
+     * the real file size (the CBC padding) is never written at all. When
+     * the size is known the file is set to its full length first and
+     * each buffer is written at its own offset, otherwise two decrypted
+     * buffers are appended with a single gathering write.
+     */
+    private void decryptFileChannel(byte[] protectionClass,
+    	byte[] persistentKey, Path source, Path destination, long size,
+    	FileDigests digests) throws IOException, ExceptionManager,
+    	InvalidKeyException {
+        Key key = this.unwrapSpecForClass(protectionClass, persistentKey);
+        Cipher c = getCipher(FILE_CIPHER, Cipher.DECRYPT_MODE,
+        	protectionClass);
+        ByteBuffer[] buffers = CHANNEL_BUFFERS.get();
+        ByteBuffer input = buffers[0];
+        ByteBuffer[] output = { buffers[1], buffers[2] };
+        long wanted = (size == -1L) ? Long.MAX_VALUE : size;
+
+        try (FileChannel inChannel = FileChannel.open(source,
+        		StandardOpenOption.READ);
+        	FileChannel outChannel = FileChannel.open(destination,
+        		StandardOpenOption.READ, StandardOpenOption.WRITE,
+        		StandardOpenOption.CREATE,
+        		StandardOpenOption.TRUNCATE_EXISTING)) {
+        	c.init(Cipher.DECRYPT_MODE, key,
+        		new IvParameterSpec(new byte[16]));
+        	preallocate(outChannel, size);
+        	long position = 0;
+
+        	boolean done = false;
+        	while (! done) {
+        		for (ByteBuffer out : output) {
+        			out.clear();
+        			if (done) {
+        				out.limit(0);
+        				continue;
+        			}
+        			input.clear();
+        			while (input.hasRemaining()) {
+        				if (inChannel.read(input) < 0) {
+        					done = true;
+        					break;
+        				}
+        			}
+        			input.flip();
+        			c.update(input, out);
+        			out.flip();
+
+        			/* Strip the padding by the real size. */
+        			if (out.remaining() > wanted) {
+        				out.limit((int) wanted);
+        			}
+        			wanted -= out.remaining();
+        			/* Without a size the padding would be hashed. */
+        			if (digests != null && size != -1L) {
+        				digests.update(out);
+        			}
+        			if (wanted == 0) {
+        				done = true;
+        			}
+        		}
+        		if (size != -1L) {
+        			for (ByteBuffer out : output) {
+        				while (out.hasRemaining()) {
+        					position += outChannel.write(out, position);
+        				}
+        			}
+        		} else {
+        			while (output[0].hasRemaining() ||
+        				output[1].hasRemaining()) {
+        				outChannel.write(output);
+        			}
+        		}
+        	}
+
+        	trimToSize(outChannel, size);
+        	if (digests != null && size == -1L) {
+        		digests.hash(outChannel);
+        	}
+        } catch (ShortBufferException | InvalidAlgorithmParameterException
+        	e) {
+            throw new ExceptionManager("Unable to decrypt " + source, e,
+            	false);
+        } finally {
+        	/* Reset the pooled cipher; a short trailing block is dropped. */
+        	try {
+        		c.doFinal();
+        	} catch (IllegalBlockSizeException | BadPaddingException |
+        		IllegalStateException e) {
+        		/* Nothing to recover, the cipher is re-initialized anyway. */
+        	}
+        }
+    }
+
+    /*
+     * Open a channel that decrypts on demand, for when only part of a
+     * file is needed. size is the real size, -1 if it is not known.
+     */
+    public DecryptingChannel openChannel(int protectionClass,
+    	byte[] persistentKey, Path source, long size) throws IOException,
+    	ExceptionManager, InvalidKeyException {
+        byte[] classId = ByteBuffer.allocate(4).putInt(protectionClass)
+        	.array();
+        return new DecryptingChannel(this.unwrapSpecForClass(classId,
+        	persistentKey), classId, source, size);
+    }
+
+    /* Large files are split up and decrypted on several cores. */
+    private void decryptFileParallel(byte[] protectionClass,
+    	byte[] persistentKey, Path source, Path destination, long size,
+    	FileDigests digests) throws IOException, ExceptionManager,
+    	InvalidKeyException {
+        Key key = this.unwrapSpecForClass(protectionClass, persistentKey);
+
+        try (FileChannel inChannel = FileChannel.open(source,
+        		StandardOpenOption.READ);
+        	FileChannel outChannel = FileChannel.open(destination,
+        		StandardOpenOption.READ, StandardOpenOption.WRITE,
+        		StandardOpenOption.CREATE,
+        		StandardOpenOption.TRUNCATE_EXISTING)) {
+        	preallocate(outChannel, size);
+        	ParallelDecryptor.decrypt(key, protectionClass, inChannel,
+        		outChannel, size);
+        	trimToSize(outChannel, size);
+        	if (digests != null) {
+        		digests.hash(outChannel);
+        	}
+        }
+    }
+
+    /*
+     * Give the file its final length before any data is written, so it
+     * does not grow one write at a time. Java has no fallocate(), this
+     * is the closest it gets. A short source still leaves a file of the
+     * expected size.
+     */
+    private static void preallocate(FileChannel channel, long size)
+    	throws IOException {
+        if (size > 0 && channel.size() < size) {
+        	channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /*
+     * Cut the file to exactly size. Without a size, drop the PKCS#7
+     * padding the last block carries instead.
+     */
+    static void trimToSize(FileChannel channel, long size)
+    	throws IOException {
+        if (size != -1L) {
+        	channel.truncate(size);
+        	preallocate(channel, size);
+        	return;
+        }
+        long length = channel.size();
+        if (length < 16 || length % 16 != 0) {
+        	return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(16);
+        while (last.hasRemaining() && channel.read(last, length - 16
+        	+ last.position()) > 0) {
+        	/* Keep reading. */
+        }
+        channel.truncate(length - paddingLength(last.array(), 0));
+    }
+
+    /*
+     * The PKCS#7 padding at the end of the decrypted block at offset, 0
+     * if the block does not end in valid padding. DecryptingChannel
+     * uses this too, so both give the same bytes for a file.
+     */
+    static int paddingLength(byte[] block, int offset) {
+        int pad = block[offset + 15] & 0xFF;
+        if (pad < 1 || pad > 16) {
+        	return 0;
+        }
+        for (int i = 16 - pad; i < 16; i++) {
+        	if ((block[offset + i] & 0xFF) != pad) {
+        		return 0;
+        	}
+        }
+        return pad;
     }
 
     /* Return the hashset if !null. */
@@ -351,8 +773,15 @@ public class KeyBag {
     public void decryptFile(int protectionClass, byte[] persistentKey,
     	Path source, Path destination, long size) throws ExceptionManager,
     	IOException, InvalidKeyException {
+        decryptFile(protectionClass, persistentKey, source, destination, size,
+        	null);
+    }
+
+    public void decryptFile(int protectionClass, byte[] persistentKey,
+    	Path source, Path destination, long size, FileDigests digests)
+    	throws ExceptionManager, IOException, InvalidKeyException {
         decryptFile(ByteBuffer.allocate(4).putInt(protectionClass).array(),
-        	persistentKey, source, destination, size);
+        	persistentKey, source, destination, size, digests);
     }
 
     public void decryptFile(int protectionClass, byte[] persistentKey,
@@ -364,15 +793,15 @@ public class KeyBag {
     public InputStream encryptStream(byte[] protectionClass,
     	byte[] persistentKey, InputStream source) throws ExceptionManager,
     	InvalidKeyException {
-        byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
+        Key key = this.unwrapSpecForClass(protectionClass, persistentKey);
 
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
-            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+            Cipher c = getCipher(FILE_CIPHER, Cipher.ENCRYPT_MODE,
+            	protectionClass);
+            c.init(Cipher.ENCRYPT_MODE, key,
             	new IvParameterSpec(new byte[16]));
             return new CipherInputStream(source, c);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException |
-        	InvalidAlgorithmParameterException e) {
+        } catch (InvalidAlgorithmParameterException e) {
             throw new ExceptionManager("Unsupported encryption type found!",
             	e, true);
         }
@@ -0,0 +1,216 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Opt-in cache of unlocked class keys (-DiExtractor.keyCache=true).
+ * Working out the passcode key costs two PBKDF2 runs, several seconds a
+ * backup, so a backup that has been opened before gets its class keys
+ * from here instead. Entries are named after the keybag UUID, salts and
+ * iteration counts and are sealed with AES-GCM under a random master
+ * secret kept next to them, readable by the owner only.
+ */
+public class KeyCache {
+	private static final String CACHE_CIPHER = "AES/GCM/NoPadding";
+	private static final int MAGIC = 0x49584b43; /* "IXKC" */
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	private static final int MASTER_LENGTH = 32;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private KeyCache() {
+	}
+
+	public static Path getCacheDir() {
+		return Paths.get(System.getProperty("user.home"), ".iExtractor",
+				"keycache");
+	}
+
+	/* The class keys cached for this keybag, or null if there are none. */
+	public static Map<ByteBuffer, byte[]> load(byte[] cacheId) throws
+		ExceptionManager {
+		Path entry = entryPath(cacheId);
+		try {
+			if (! Files.exists(entry)) {
+				return null;
+			}
+			byte[] sealed = Files.readAllBytes(entry);
+			ByteBuffer buffer = ByteBuffer.wrap(sealed);
+			if (sealed.length < 4 + NONCE_LENGTH || buffer.getInt() != MAGIC) {
+				throw new IOException("Not a key cache entry: " + entry);
+			}
+			byte[] nonce = new byte[NONCE_LENGTH];
+			buffer.get(nonce);
+
+			Cipher c = Cipher.getInstance(CACHE_CIPHER);
+			c.init(Cipher.DECRYPT_MODE, masterKey(), new
+				GCMParameterSpec(TAG_BITS, nonce));
+			c.updateAAD(cacheId);
+			byte[] plain = c.doFinal(sealed, buffer.position(),
+				buffer.remaining());
+
+			Map<ByteBuffer, byte[]> classKeys = new HashMap<>();
+			try (DataInputStream in = new DataInputStream(new
+					ByteArrayInputStream(plain))) {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte[] protectionClass = new byte[in.readInt()];
+					in.readFully(protectionClass);
+					byte[] key = new byte[in.readInt()];
+					in.readFully(key);
+					classKeys.put(ByteBuffer.wrap(protectionClass), key);
+				}
+			}
+			Arrays.fill(plain, (byte) 0);
+			return classKeys;
+		} catch (IOException | GeneralSecurityException e) {
+			throw new ExceptionManager("Unable to read the key cache entry "
+				+ entry.getFileName(), e, false);
+		}
+	}
+
+	/* Seal the unlocked class keys for this keybag into the cache. */
+	public static void store(byte[] cacheId, Map<ByteBuffer, byte[]>
+		classKeys) throws ExceptionManager {
+		Path entry = entryPath(cacheId);
+		try {
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(plain)) {
+				out.writeInt(classKeys.size());
+				for (Map.Entry<ByteBuffer, byte[]> classKey :
+						classKeys.entrySet()) {
+					byte[] protectionClass = new byte[classKey.getKey()
+						.remaining()];
+					classKey.getKey().duplicate().get(protectionClass);
+					out.writeInt(protectionClass.length);
+					out.write(protectionClass);
+					out.writeInt(classKey.getValue().length);
+					out.write(classKey.getValue());
+				}
+			}
+
+			byte[] nonce = new byte[NONCE_LENGTH];
+			RANDOM.nextBytes(nonce);
+			Cipher c = Cipher.getInstance(CACHE_CIPHER);
+			c.init(Cipher.ENCRYPT_MODE, masterKey(), new
+				GCMParameterSpec(TAG_BITS, nonce));
+			c.updateAAD(cacheId);
+			byte[] sealed = c.doFinal(plain.toByteArray());
+
+			ByteBuffer contents = ByteBuffer.allocate(4 + NONCE_LENGTH
+				+ sealed.length);
+			contents.putInt(MAGIC).put(nonce).put(sealed);
+
+			/* Write beside the entry and move it in, never half written. */
+			Path temp = createPrivateFile(getCacheDir(), entry.getFileName()
+				+ ".");
+			Files.write(temp, contents.array());
+			try {
+				Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			throw new ExceptionManager("Unable to write the key cache entry "
+				+ entry.getFileName(), e, false);
+		}
+	}
+
+	private static Path entryPath(byte[] cacheId) {
+		return getCacheDir().resolve(KeyBag.bytesToHex(cacheId) + ".key");
+	}
+
+	/* Read the master secret, making one the first time through. */
+	private static synchronized SecretKeySpec masterKey() throws
+		IOException {
+		Path master = getCacheDir().resolve("master.secret");
+		if (! Files.exists(master)) {
+			byte[] secret = new byte[MASTER_LENGTH];
+			RANDOM.nextBytes(secret);
+			Path temp = createPrivateFile(getCacheDir(), "master.");
+			Files.write(temp, secret);
+			try {
+				/* A link never replaces, another copy may have won the race. */
+				Files.createLink(master, temp);
+			} catch (FileAlreadyExistsException e) {
+				/* Use theirs. */
+			} catch (UnsupportedOperationException e) {
+				Files.copy(temp, master);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		byte[] secret;
+		try {
+			secret = Files.readAllBytes(master);
+		} catch (NoSuchFileException e) {
+			throw new IOException("The key cache master secret went away", e);
+		}
+		if (secret.length != MASTER_LENGTH) {
+			throw new IOException("The key cache master secret is damaged");
+		}
+		return new SecretKeySpec(secret, "AES");
+	}
+
+	/* A new file only the owner can read, where the file system allows. */
+	private static Path createPrivateFile(Path dir, String prefix) throws
+		IOException {
+		try {
+			Files.createDirectories(dir, PosixFilePermissions
+				.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			return Files.createTempFile(dir, prefix, ".tmp",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions
+				.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createDirectories(dir);
+			return Files.createTempFile(dir, prefix, ".tmp");
+		}
+	}
+}
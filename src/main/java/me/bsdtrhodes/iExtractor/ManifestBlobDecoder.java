@@ -0,0 +1,269 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Reads the three things we need out of a Manifest "file" blob without
+ * building the whole NSKeyedArchiver object graph. The blob is a binary
+ * plist (bplist00): a trailer at the end points at an offset table, the
+ * top object is the archiver dictionary, and $top/root names the MBFile
+ * properties inside $objects. From there we only want ProtectionClass,
+ * Size and the 40 byte wrapped key at EncryptionKey/NS.data (after the
+ * four byte class prefix), which is copied into a buffer that is reused
+ * from one blob to the next.
+ *
+ * Not thread safe, use one per thread (forThread()). Anything odd makes
+ * decode() return false so the caller can fall back to the full parser.
+ */
+public class ManifestBlobDecoder {
+	private static final byte[] MAGIC = ascii("bplist00");
+	private static final byte[] OBJECTS = ascii("$objects");
+	private static final byte[] TOP = ascii("$top");
+	private static final byte[] ROOT = ascii("root");
+	private static final byte[] PROTECTION_CLASS = ascii("ProtectionClass");
+	private static final byte[] SIZE = ascii("Size");
+	private static final byte[] ENCRYPTION_KEY = ascii("EncryptionKey");
+	private static final byte[] NS_DATA = ascii("NS.data");
+	private static final int KEY_LENGTH = 40;
+
+	private static final ThreadLocal<ManifestBlobDecoder> DECODERS =
+			ThreadLocal.withInitial(ManifestBlobDecoder::new);
+
+	private final byte[] key = new byte[KEY_LENGTH];
+	private byte[] blob;
+	private int offsetSize, refSize, offsetTable;
+	/* Set by count(), where the payload of the last object starts. */
+	private int payload;
+	private long numObjects;
+
+	private int protectionClass;
+	private long size;
+	private boolean hasKey;
+
+	public static ManifestBlobDecoder forThread() {
+		return DECODERS.get();
+	}
+
+	/* Pull the fields out of one blob, false if it could not be read. */
+	public boolean decode(byte[] fileBlob) {
+		this.blob = fileBlob;
+		this.protectionClass = 0;
+		this.size = -1L;
+		this.hasKey = false;
+		/* Never hand out the previous blob's key. */
+		Arrays.fill(this.key, (byte) 0);
+		try {
+			return walk();
+		} catch (RuntimeException e) {
+			/* Truncated or not what we expected, let the parser try. */
+			return false;
+		} finally {
+			this.blob = null;
+		}
+	}
+
+	public int getProtectionClass() {
+		return protectionClass;
+	}
+
+	/* The real (unpadded) size, -1 if the blob does not say. */
+	public long getSize() {
+		return size;
+	}
+
+	public boolean hasEncryptionKey() {
+		return hasKey;
+	}
+
+	/* Only valid until the next decode(), copy it to keep it. */
+	public byte[] getEncryptionKey() {
+		return key;
+	}
+
+	private boolean walk() {
+		byte[] b = this.blob;
+		if (b == null || b.length < MAGIC.length + 32
+				|| ! regionEquals(b, 0, MAGIC)) {
+			return false;
+		}
+		int trailer = b.length - 32;
+		this.offsetSize = b[trailer + 6] & 0xff;
+		this.refSize = b[trailer + 7] & 0xff;
+		this.numObjects = readLong(trailer + 8, 8);
+		long topObject = readLong(trailer + 16, 8);
+		this.offsetTable = (int) readLong(trailer + 24, 8);
+
+		/* The archiver dictionary: $objects and $top/root. */
+		int top = objectOffset(topObject);
+		int objectsRef = dictLookup(top, OBJECTS);
+		int topRef = dictLookup(top, TOP);
+		if (objectsRef < 0 || topRef < 0) {
+			return false;
+		}
+		int objects = objectOffset(objectsRef);
+		int rootRef = dictLookup(objectOffset(topRef), ROOT);
+		if (rootRef < 0 || marker(objects) != 0xA) {
+			return false;
+		}
+		long rootIndex = readUID(objectOffset(rootRef));
+		int root = objectOffset(arrayElement(objects, rootIndex));
+
+		int value = dictLookup(root, PROTECTION_CLASS);
+		if (value < 0) {
+			return false;
+		}
+		this.protectionClass = (int) readInt(objectOffset(value));
+
+		value = dictLookup(root, SIZE);
+		if (value >= 0) {
+			this.size = readInt(objectOffset(value));
+		}
+
+		/* EncryptionKey -> UID -> NSMutableData -> NS.data, 4 + 40. */
+		value = dictLookup(root, ENCRYPTION_KEY);
+		if (value >= 0) {
+			long keyIndex = readUID(objectOffset(value));
+			int keyDict = objectOffset(arrayElement(objects, keyIndex));
+			int dataRef = dictLookup(keyDict, NS_DATA);
+			if (dataRef < 0) {
+				return false;
+			}
+			int data = objectOffset(dataRef);
+			if (marker(data) != 0x4) {
+				return false;
+			}
+			if (count(data) < 4 + KEY_LENGTH) {
+				return false;
+			}
+			System.arraycopy(b, this.payload + 4, this.key, 0, KEY_LENGTH);
+			this.hasKey = true;
+		}
+		return true;
+	}
+
+	private int marker(int offset) {
+		return (this.blob[offset] & 0xf0) >>> 4;
+	}
+
+	private int objectOffset(long ref) {
+		if (ref < 0 || ref >= this.numObjects) {
+			throw new IndexOutOfBoundsException("object " + ref);
+		}
+		return (int) readLong(this.offsetTable + (int) ref * this.offsetSize,
+				this.offsetSize);
+	}
+
+	/* Length of a counted object, its payload start goes in payload. */
+	private int count(int offset) {
+		int count = this.blob[offset] & 0x0f;
+		int start = offset + 1;
+		if (count == 0x0f) {
+			int intMarker = this.blob[start] & 0xff;
+			if ((intMarker & 0xf0) != 0x10) {
+				throw new IllegalStateException("bad length");
+			}
+			int bytes = 1 << (intMarker & 0x0f);
+			count = (int) readLong(start + 1, bytes);
+			start += 1 + bytes;
+		}
+		this.payload = start;
+		return count;
+	}
+
+	private long arrayElement(int array, long index) {
+		int count = count(array);
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("element " + index);
+		}
+		return readLong(this.payload + (int) index * this.refSize,
+				this.refSize);
+	}
+
+	/* The value ref for an ASCII key, -1 if missing. */
+	private int dictLookup(int dict, byte[] wanted) {
+		if (marker(dict) != 0xD) {
+			throw new IllegalStateException("not a dictionary");
+		}
+		int entries = count(dict);
+		int refs = this.payload;
+		for (int i = 0; i < entries; i++) {
+			int keyOffset = objectOffset(readLong(refs + i * this.refSize,
+					this.refSize));
+			if (marker(keyOffset) != 0x5) {
+				continue;
+			}
+			if (count(keyOffset) == wanted.length
+					&& regionEquals(this.blob, this.payload, wanted)) {
+				return (int) readLong(refs + (entries + i) * this.refSize,
+						this.refSize);
+			}
+		}
+		return -1;
+	}
+
+	private long readInt(int offset) {
+		if (marker(offset) != 0x1) {
+			throw new IllegalStateException("not an integer");
+		}
+		int bytes = 1 << (this.blob[offset] & 0x0f);
+		/* 16 byte integers only ever hold 64 bit values. */
+		return bytes > 8 ? readLong(offset + 1 + bytes - 8, 8)
+				: readLong(offset + 1, bytes);
+	}
+
+	private long readUID(int offset) {
+		if (marker(offset) != 0x8) {
+			throw new IllegalStateException("not a UID");
+		}
+		return readLong(offset + 1, (this.blob[offset] & 0x0f) + 1);
+	}
+
+	private long readLong(int offset, int bytes) {
+		long value = 0;
+		for (int i = 0; i < bytes; i++) {
+			value = (value << 8) | (this.blob[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static boolean regionEquals(byte[] b, int offset, byte[] wanted) {
+		if (offset + wanted.length > b.length) {
+			return false;
+		}
+		for (int i = 0; i < wanted.length; i++) {
+			if (b[offset + i] != wanted[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,244 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Stream rows of the Manifest Files table as ManifestEntry objects
+ * instead of loading a list first. The filters become the WHERE clause,
+ * so only matching rows leave SQLite:
+ *
+ * try (Stream<ManifestEntry> media = new ManifestCursor(manifestDB)
+ *         .domain("CameraRollDomain").pathPrefix("Media/DCIM/")
+ *         .flags(1).stream()) {
+ *     media.parallel().forEach(...);
+ * }
+ *
+ * The query runs when stream() is called. The spliterator hands out
+ * batches of rows as they are read, so a parallel stream starts
+ * working on the first batch while the rest are still being read.
+ * The connection goes back to the pool when the rows run out or the
+ * stream is closed.
+ */
+public class ManifestCursor implements AutoCloseable {
+	/* Rows per batch handed to another thread. */
+	private static final int BATCH = 128;
+
+	private final Path manifestDB;
+	private final List<String> where = new ArrayList<>();
+	private final List<Object> params = new ArrayList<>();
+	private DatabaseFileManager dbMGR;
+	private PreparedStatement stmt;
+	private ResultSet results;
+
+	public ManifestCursor(Path manifestDB) {
+		this.manifestDB = manifestDB;
+	}
+
+	public ManifestCursor domain(String domain) {
+		return filter("domain = ?", domain);
+	}
+
+	/*
+	 * Paths starting with prefix. Written as a range rather than a LIKE
+	 * so the relativePath index can be used; unlike LIKE it is case
+	 * sensitive, as are the paths.
+	 */
+	public ManifestCursor pathPrefix(String prefix) {
+		if (prefix.isEmpty()) {
+			return this;
+		}
+		filter("relativePath >= ?", prefix);
+		String limit = prefixLimit(prefix);
+		if (limit == null) {
+			/* substr() counts characters, not UTF-16 units. */
+			return filter("substr(relativePath, 1, " + prefix.codePointCount(
+					0, prefix.length()) + ") = ?", prefix);
+		}
+		return filter("relativePath < ?", limit);
+	}
+
+	/*
+	 * The smallest string after everything starting with prefix: its
+	 * last code point plus one. SQLite compares the UTF-8 bytes, which
+	 * sort in code point order, so this holds for characters outside
+	 * the BMP too. Null when there is no next code point.
+	 */
+	static String prefixLimit(String prefix) {
+		int last = prefix.codePointBefore(prefix.length());
+		int next = last + 1;
+		if (next >= Character.MIN_SURROGATE
+				&& next <= Character.MAX_SURROGATE) {
+			next = Character.MAX_SURROGATE + 1;
+		}
+		if (next > Character.MAX_CODE_POINT) {
+			return null;
+		}
+		return prefix.substring(0, prefix.length() - Character.charCount(
+				last)) + new String(Character.toChars(next));
+	}
+
+	/* relativePath LIKE pattern, with % and _ as usual. */
+	public ManifestCursor pathLike(String pattern) {
+		return filter("relativePath LIKE ?", pattern);
+	}
+
+	public ManifestCursor pathNotLike(String pattern) {
+		return filter("relativePath NOT LIKE ?", pattern);
+	}
+
+	/* 1 is a file, 2 a directory, 4 a symbolic link. */
+	public ManifestCursor flags(int flags) {
+		return filter("flags = ?", flags);
+	}
+
+	private ManifestCursor filter(String condition, Object value) {
+		if (this.stmt != null) {
+			throw new IllegalStateException("The cursor is already open");
+		}
+		this.where.add(condition);
+		this.params.add(value);
+		return this;
+	}
+
+	/* Run the query and stream the rows, close the stream when done. */
+	public Stream<ManifestEntry> stream() throws ExceptionManager {
+		return StreamSupport.stream(spliterator(), false)
+				.onClose(this::close);
+	}
+
+	public Spliterator<ManifestEntry> spliterator() throws ExceptionManager {
+		open();
+		return new Batches();
+	}
+
+	private void open() throws ExceptionManager {
+		StringBuilder sql = new StringBuilder(DatabaseQueriesManager
+				.getManifestCursorQuery());
+		for (int i = 0; i < this.where.size(); i++) {
+			sql.append(i == 0 ? " WHERE " : " AND ").append(this.where
+					.get(i));
+		}
+		try {
+			this.dbMGR = new DatabaseFileManager(this.manifestDB);
+			this.stmt = this.dbMGR.getConnection().prepareStatement(sql
+					.toString());
+			for (int i = 0; i < this.params.size(); i++) {
+				this.stmt.setObject(i + 1, this.params.get(i));
+			}
+			this.results = this.stmt.executeQuery();
+		} catch (SQLException e) {
+			close();
+			throw new ExceptionManager("Unable to read the Manifest"
+					+ " database", e, true);
+		}
+	}
+
+	/* The next row, or null (and the cursor closed) when there are none. */
+	private ManifestEntry next() throws ExceptionManager {
+		if (this.results == null) {
+			return null;
+		}
+		try {
+			if (! this.results.next()) {
+				close();
+				return null;
+			}
+			return new ManifestEntry(this.results.getString(1),
+					this.results.getString(2), this.results.getString(3),
+					this.results.getInt(4), this.results.getBytes(5));
+		} catch (SQLException e) {
+			close();
+			throw new ExceptionManager("Error while reading the Manifest"
+					+ " database", e, true);
+		}
+	}
+
+	@Override
+	public void close() throws ExceptionManager {
+		try {
+			if (this.results != null) this.results.close();
+			if (this.stmt != null) this.stmt.close();
+		} catch (SQLException e) {
+			/* Going back to the pool regardless. */
+		} finally {
+			this.results = null;
+			if (this.dbMGR != null) {
+				this.dbMGR.finish();
+				this.dbMGR = null;
+			}
+		}
+	}
+
+	/*
+	 * Reads rows one at a time for the thread that owns it, and splits
+	 * off the next BATCH rows for anyone else.
+	 */
+	private class Batches extends Spliterators.AbstractSpliterator<
+			ManifestEntry> {
+		private static final int CHARACTERISTICS = Spliterator.ORDERED
+				| Spliterator.NONNULL | Spliterator.IMMUTABLE;
+
+		Batches() {
+			super(Long.MAX_VALUE, CHARACTERISTICS);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super ManifestEntry> action) {
+			ManifestEntry entry = next();
+			if (entry == null) {
+				return false;
+			}
+			action.accept(entry);
+			return true;
+		}
+
+		@Override
+		public Spliterator<ManifestEntry> trySplit() {
+			ManifestEntry[] batch = new ManifestEntry[BATCH];
+			int count = 0;
+			ManifestEntry entry;
+			while (count < BATCH && (entry = next()) != null) {
+				batch[count++] = entry;
+			}
+			if (count == 0) {
+				return null;
+			}
+			return Spliterators.spliterator(batch, 0, count,
+					CHARACTERISTICS);
+		}
+	}
+}
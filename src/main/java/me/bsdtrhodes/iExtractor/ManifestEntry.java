@@ -0,0 +1,100 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import com.dd.plist.NSDictionary;
+import com.dd.plist.PropertyListFormatException;
+import com.dd.plist.PropertyListParser;
+
+/*
+ * One row of the Manifest Files table: where a file lived on the phone,
+ * where it sits in the backup, and the archived properties blob that
+ * holds its protection class, size and wrapped key.
+ */
+public class ManifestEntry {
+	private final String fileID;
+	private final String domain;
+	private final String relativePath;
+	private final int flags;
+	private final byte[] file;
+
+	public ManifestEntry(String fileID, String domain, String relativePath,
+			int flags, byte[] file) {
+		this.fileID = fileID;
+		this.domain = domain;
+		this.relativePath = relativePath;
+		this.flags = flags;
+		this.file = file;
+	}
+
+	public String getFileID() {
+		return fileID;
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public String getRelativePath() {
+		return relativePath;
+	}
+
+	/* 1 is a file, 2 a directory, 4 a symbolic link. */
+	public int getFlags() {
+		return flags;
+	}
+
+	public byte[] getFileBlob() {
+		return file;
+	}
+
+	/* The file inside the backup, sorted into its two character dir. */
+	public Path getBackupPath(Path backupLocation) {
+		return BackupFileResolver.getBackupPath(backupLocation, fileID);
+	}
+
+	/* The NSKeyedArchiver properties for the file. */
+	public NSDictionary getPropertyList() throws ExceptionManager {
+		if (this.file == null) {
+			throw new ExceptionManager("No file properties for "
+					+ this.domain + "-" + this.relativePath);
+		}
+		try {
+			return (NSDictionary) PropertyListParser.parse(this.file);
+		} catch (IOException | PropertyListFormatException | ParseException
+				| ParserConfigurationException | SAXException e) {
+			throw new ExceptionManager("Unable to get file properties for "
+					+ this.domain + "-" + this.relativePath, e, true);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * Lookups against the Manifest Files table over one shared connection.
+ * fileID is the primary key, so every lookup is an exact indexed match
+ * instead of the old LIKE '%id%' scan of the whole table. The statement
+ * is prepared once; the connection is shared between threads, so
+ * lookups are synchronized.
+ */
+public class ManifestIndex implements AutoCloseable {
+	private final DatabaseFileManager dbMGR;
+	private final PreparedStatement byFileID;
+
+	public ManifestIndex(Path manifestDB) throws ExceptionManager {
+		this.dbMGR = new DatabaseFileManager(manifestDB);
+		Connection conn = this.dbMGR.getConnection();
+		try {
+			this.byFileID = conn.prepareStatement(DatabaseQueriesManager
+					.getEncFileQuery());
+		} catch (SQLException e) {
+			throw new ExceptionManager("Unable to read the Manifest"
+					+ " database", e, true);
+		}
+	}
+
+	/* The entry for a fileID, or null if the Manifest has none. */
+	public synchronized ManifestEntry find(String fileID) throws
+		ExceptionManager {
+		try {
+			this.byFileID.setString(1, fileID);
+			return first(this.byFileID);
+		} catch (SQLException e) {
+			throw new ExceptionManager("Unable to look up " + fileID
+					+ " in the Manifest database", e, true);
+		}
+	}
+
+	/* Same as find(), but a missing entry is an error. */
+	public ManifestEntry require(String fileID) throws ExceptionManager {
+		ManifestEntry entry = find(fileID);
+		if (entry == null) {
+			throw new ExceptionManager("No Manifest entry for " + fileID,
+					new SQLException("fileID not found"), true);
+		}
+		return entry;
+	}
+
+	private static ManifestEntry first(PreparedStatement statement) throws
+		SQLException {
+		try (ResultSet result = statement.executeQuery()) {
+			if (! result.next()) {
+				return null;
+			}
+			return new ManifestEntry(result.getString("fileID"),
+					result.getString("domain"),
+					result.getString("relativePath"), result.getInt("flags"),
+					result.getBytes("file"));
+		}
+	}
+
+	@Override
+	public void close() throws ExceptionManager {
+		try {
+			this.byFileID.close();
+		} catch (SQLException e) {
+			throw new ExceptionManager("Failed to close DB connection", e,
+					false);
+		} finally {
+			this.dbMGR.finish();
+		}
+	}
+}
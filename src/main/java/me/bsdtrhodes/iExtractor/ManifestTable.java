@@ -0,0 +1,383 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ * The media list, stored by column instead of as one object graph per
+ * file. Half a million files used to mean half a million Media objects,
+ * each with six Paths, a handful of Strings and a parsed plist. Here a
+ * row is an index into primitive arrays:
+ *
+ * - fileIDs, 20 bytes each (the SHA-1, not the 40 character hex);
+ * - flags, protection class and size;
+ * - wrapped keys, 40 bytes each;
+ * - relative paths as runs of ids into a table of interned path
+ *   segments, so "Media/DCIM/100APPLE" is stored once for every file
+ *   in it.
+ *
+ * Media objects are thin views over a row and Paths are only built
+ * when a file is extracted. Rows are added by one thread while the
+ * Manifest is read and only read after that.
+ */
+public class ManifestTable implements Iterable<Media> {
+	private static final int ID_LENGTH = 20;
+	private static final int KEY_LENGTH = 40;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path backupLocation;
+	private final Path restoreLocation;
+	private final Phone iPhone;
+
+	private int rows = 0;
+	private byte[] fileIDs = new byte[ID_LENGTH * 1024];
+	private int[] flags = new int[1024];
+	private int[] protectionClasses = new int[1024];
+	private long[] sizes = new long[1024];
+	private byte[] keys = new byte[KEY_LENGTH * 1024];
+
+	/* Row r's segments are pathSegments[pathStarts[r] .. pathStarts[r+1]). */
+	private int[] pathStarts = new int[1025];
+	private int[] pathSegments = new int[4096];
+
+	/* Rows by parent directory name, built on first use. */
+	private Map<String, int[]> directories = null;
+	private Map<String, Long> directoryBytes = null;
+	/* Rows some extraction has taken on, see claim(). */
+	private final BitSet claimed = new BitSet();
+	/* Rows whose blob has no EncryptionKey. */
+	private final BitSet keyless = new BitSet();
+
+	private final List<String> segments = new ArrayList<>();
+	private final Map<String, Integer> segmentIds = new HashMap<>();
+
+	public ManifestTable(Path backupLocation, Path restoreLocation,
+			Phone iPhone) {
+		this.backupLocation = backupLocation;
+		this.restoreLocation = restoreLocation;
+		this.iPhone = iPhone;
+	}
+
+	/*
+	 * Add one Manifest row. The blob is read with the thread's
+	 * ManifestBlobDecoder, the full parser only sees what it cannot read.
+	 * Rows without a key (every row of an unencrypted backup) are marked
+	 * keyless.
+	 */
+	public void add(String fileID, String relativePath, int fileFlags,
+			byte[] fileBlob) throws ExceptionManager {
+		ensureCapacity(this.rows + 1);
+		int row = this.rows;
+
+		hexToBytes(fileID, this.fileIDs, row * ID_LENGTH);
+		this.flags[row] = fileFlags;
+
+		ManifestBlobDecoder decoder = ManifestBlobDecoder.forThread();
+		if (decoder.decode(fileBlob)) {
+			this.protectionClasses[row] = decoder.getProtectionClass();
+			this.sizes[row] = decoder.getSize();
+			if (decoder.hasEncryptionKey()) {
+				System.arraycopy(decoder.getEncryptionKey(), 0, this.keys,
+						row * KEY_LENGTH, KEY_LENGTH);
+			} else {
+				this.keyless.set(row);
+			}
+		} else {
+			EncryptedFile parsed = new EncryptedFile(null, this.iPhone,
+					new ManifestEntry(fileID, null, relativePath, fileFlags,
+					fileBlob));
+			this.protectionClasses[row] = parsed.getProtectionClass();
+			this.sizes[row] = parsed.getSize();
+			if (parsed.getEncryptionKey() == null) {
+				this.keyless.set(row);
+			} else {
+				System.arraycopy(parsed.getEncryptionKey(), 0, this.keys,
+						row * KEY_LENGTH, KEY_LENGTH);
+			}
+		}
+
+		int start = this.pathStarts[row];
+		int count = 0;
+		for (String segment : relativePath.split("/")) {
+			if (segment.isEmpty()) continue;
+			if (start + count == this.pathSegments.length) {
+				this.pathSegments = Arrays.copyOf(this.pathSegments,
+						this.pathSegments.length * 2);
+			}
+			this.pathSegments[start + count++] = intern(segment);
+		}
+		this.pathStarts[row + 1] = start + count;
+		this.rows++;
+	}
+
+	public int size() {
+		return this.rows;
+	}
+
+	public Media get(int row) {
+		checkRow(row);
+		return new Media(this, row);
+	}
+
+	@Override
+	public Iterator<Media> iterator() {
+		return new Iterator<>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < rows;
+			}
+
+			@Override
+			public Media next() {
+				if (! hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return get(next++);
+			}
+		};
+	}
+
+	public String getFileID(int row) {
+		checkRow(row);
+		char[] hex = new char[ID_LENGTH * 2];
+		for (int i = 0; i < ID_LENGTH; i++) {
+			int b = this.fileIDs[row * ID_LENGTH + i] & 0xff;
+			hex[i * 2] = HEX[b >>> 4];
+			hex[i * 2 + 1] = HEX[b & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	public String getRelativePath(int row) {
+		checkRow(row);
+		StringBuilder path = new StringBuilder();
+		for (int i = this.pathStarts[row]; i < this.pathStarts[row + 1];
+				i++) {
+			if (path.length() > 0) path.append('/');
+			path.append(this.segments.get(this.pathSegments[i]));
+		}
+		return path.toString();
+	}
+
+	/* Name of the directory the file sits in, "" at the top. */
+	public String getParentName(int row) {
+		checkRow(row);
+		int count = this.pathStarts[row + 1] - this.pathStarts[row];
+		return count < 2 ? "" : this.segments.get(this.pathSegments[
+				this.pathStarts[row + 1] - 2]);
+	}
+
+	/* The rows in directory dir, empty if there are none. */
+	public int[] getDirectoryRows(String dir) {
+		int[] rows = directories().get(dir);
+		return (rows == null) ? new int[0] : rows.clone();
+	}
+
+	public int getDirectoryCount(String dir) {
+		int[] rows = directories().get(dir);
+		return (rows == null) ? 0 : rows.length;
+	}
+
+	/* Total Manifest size of the files in dir. */
+	public long getDirectoryBytes(String dir) {
+		directories();
+		return this.directoryBytes.getOrDefault(dir, 0L);
+	}
+
+	/*
+	 * Group the rows by parent directory in two passes over the parent
+	 * segment ids, counting and then filling, instead of one string
+	 * comparison per file for every directory.
+	 */
+	private synchronized Map<String, int[]> directories() {
+		if (this.directories != null) {
+			return this.directories;
+		}
+		int[] parents = new int[this.rows];
+		int[] counts = new int[this.segments.size() + 1];
+		for (int row = 0; row < this.rows; row++) {
+			int count = this.pathStarts[row + 1] - this.pathStarts[row];
+			/* The last slot stands for "" (files at the top). */
+			parents[row] = count < 2 ? this.segments.size()
+					: this.pathSegments[this.pathStarts[row + 1] - 2];
+			counts[parents[row]]++;
+		}
+		int[][] grouped = new int[counts.length][];
+		long[] bytes = new long[counts.length];
+		int[] filled = new int[counts.length];
+		for (int row = 0; row < this.rows; row++) {
+			int parent = parents[row];
+			if (grouped[parent] == null) {
+				grouped[parent] = new int[counts[parent]];
+			}
+			grouped[parent][filled[parent]++] = row;
+			bytes[parent] += Math.max(0L, this.sizes[row]);
+		}
+		Map<String, int[]> byName = new HashMap<>();
+		Map<String, Long> bytesByName = new HashMap<>();
+		for (int parent = 0; parent < grouped.length; parent++) {
+			if (grouped[parent] != null) {
+				String name = parent == this.segments.size() ? ""
+						: this.segments.get(parent);
+				byName.put(name, grouped[parent]);
+				bytesByName.put(name, bytes[parent]);
+			}
+		}
+		this.directoryBytes = bytesByName;
+		this.directories = byName;
+		return byName;
+	}
+
+	/*
+	 * Take a row on for extraction. False if another extraction already
+	 * has it, so two buttons (or a directory and Extract All) running at
+	 * once never copy the same file twice.
+	 */
+	synchronized boolean claim(int row) {
+		checkRow(row);
+		if (this.claimed.get(row)) {
+			return false;
+		}
+		this.claimed.set(row);
+		return true;
+	}
+
+	synchronized boolean isClaimed(int row) {
+		checkRow(row);
+		return this.claimed.get(row);
+	}
+
+	/* The extraction failed, let a later one try the row again. */
+	synchronized void release(int row) {
+		this.claimed.clear(row);
+	}
+
+	public int getFlags(int row) {
+		checkRow(row);
+		return this.flags[row];
+	}
+
+	public int getProtectionClass(int row) {
+		checkRow(row);
+		return this.protectionClasses[row];
+	}
+
+	public long getSize(int row) {
+		checkRow(row);
+		return this.sizes[row];
+	}
+
+	/* Null when the row has no key, decrypting it then fails. */
+	public byte[] getEncryptionKey(int row) {
+		checkRow(row);
+		if (this.keyless.get(row)) {
+			return null;
+		}
+		return Arrays.copyOfRange(this.keys, row * KEY_LENGTH,
+				(row + 1) * KEY_LENGTH);
+	}
+
+	/* The file inside the backup, sorted into its two character dir. */
+	public Path getBackupPath(int row) {
+		String fileID = getFileID(row);
+		return this.backupLocation.resolve(fileID.substring(0, 2))
+				.resolve(fileID);
+	}
+
+	/* Where the file goes under the restore directory. */
+	public Path getRestorePath(int row) {
+		return this.restoreLocation.resolve(getRelativePath(row));
+	}
+
+	public Path getBackupLocation() {
+		return this.backupLocation;
+	}
+
+	public Path getRestoreLocation() {
+		return this.restoreLocation;
+	}
+
+	boolean isEncrypted() {
+		return this.iPhone != null && this.iPhone.isEncrypted;
+	}
+
+	/* Build the EncryptedFile for a row only when it is extracted. */
+	public EncryptedFile getEncryptedFile(int row) {
+		return new EncryptedFile(getBackupPath(row), this.iPhone,
+				getProtectionClass(row), getSize(row), getEncryptionKey(row));
+	}
+
+	private int intern(String segment) {
+		Integer id = this.segmentIds.get(segment);
+		if (id == null) {
+			id = this.segments.size();
+			this.segments.add(segment);
+			this.segmentIds.put(segment, id);
+		}
+		return id;
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= this.rows) {
+			throw new IndexOutOfBoundsException("row " + row + " of "
+					+ this.rows);
+		}
+	}
+
+	private void ensureCapacity(int wanted) {
+		if (wanted <= this.flags.length) {
+			return;
+		}
+		int capacity = Math.max(wanted, this.flags.length * 2);
+		this.fileIDs = Arrays.copyOf(this.fileIDs, capacity * ID_LENGTH);
+		this.flags = Arrays.copyOf(this.flags, capacity);
+		this.protectionClasses = Arrays.copyOf(this.protectionClasses,
+				capacity);
+		this.sizes = Arrays.copyOf(this.sizes, capacity);
+		this.keys = Arrays.copyOf(this.keys, capacity * KEY_LENGTH);
+		this.pathStarts = Arrays.copyOf(this.pathStarts, capacity + 1);
+	}
+
+	private static void hexToBytes(String hex, byte[] out, int offset) {
+		if (hex.length() != ID_LENGTH * 2) {
+			throw new IllegalArgumentException("Not a fileID: " + hex);
+		}
+		for (int i = 0; i < ID_LENGTH; i++) {
+			out[offset + i] = (byte) ((Character.digit(hex.charAt(i * 2), 16)
+					<< 4) | Character.digit(hex.charAt(i * 2 + 1), 16));
+		}
+	}
+}
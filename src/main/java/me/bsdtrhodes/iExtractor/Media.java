@@ -31,7 +31,6 @@ package me.bsdtrhodes.iExtractor;
  */
 
 /* TODO:
- * o Make pretty. The constructor probably does not need to be so large.
  * o Remove any unused getters.
  * o Ask the user about continuing to work in the face of a copy error.
  * o There is a great deal of additional metadata in another database
@@ -49,48 +48,23 @@ package me.bsdtrhodes.iExtractor;
  */
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
-public class Media extends Phone {
-	private String FileID, RelativePath, DirPrefix, md5sum;
-	Path BackupDIR;
-	private Path saveDIR, refFname, realFileName, fileParentLocation,
-	    fromLocation, toLocation;
-	private EncryptedFile mediaFile;
-
-	/*
-	 * Create media object, set a hash for the file from which
-	 * this object is based.
-	 */
-	Media(String fid, String relpath, Path basedir, Path saveLocation,
-			EncryptedFile mediaFile) {
-		this.FileID = fid;
-		this.RelativePath = relpath;
-		this.BackupDIR = basedir;
-		this.saveDIR = saveLocation;
-		this.mediaFile = mediaFile;
-		/*
-		 * Set important variables for each media object.
-		 */
-		this.DirPrefix = fid.substring(0,2);
-		refFname = Paths.get(RelativePath);
-		this.realFileName = refFname.getFileName();
-		this.fileParentLocation = refFname.getParent();
-		fromLocation = BackupDIR.resolve(DirPrefix).resolve(FileID);
-		toLocation = saveDIR.resolve(fileParentLocation).resolve(realFileName);
-
-		try {
-			this.md5sum = super.getFileHash("MD5",
-				this.fromLocation.toString());
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+/*
+ * A Media object is a view of one row of the ManifestTable. Nothing is
+ * stored here but the row, paths are built when they are asked for.
+ */
+public class Media {
+	private final ManifestTable table;
+	private final int row;
+	private String md5sum = null;
+
+	Media(ManifestTable table, int row) {
+		this.table = table;
+		this.row = row;
 	}
 
 	/*
@@ -98,47 +72,73 @@ public class Media extends Phone {
 	 * the media information from the outside.
 	 */
 	public Path getFromLocation() {
-		return fromLocation;
+		return table.getBackupPath(row);
 	}
 
 	public Path getToLocation() {
-		return toLocation;
+		return table.getRestorePath(row);
 	}
 
 	public String getFileID() {
-		return this.FileID;
+		return table.getFileID(row);
 	}
 
 	public String getRelativePath() {
-		return this.RelativePath;
+		return table.getRelativePath(row);
 	}
 
 	public Path getSaveDir() {
-		return this.saveDIR;
+		return table.getRestoreLocation();
 	}
 
 	public Path getRefFname() {
-		return this.refFname;
+		return Path.of(getRelativePath());
 	}
 
 	public Path getRealFileName() {
-		return this.realFileName;
+		return getRefFname().getFileName();
 	}
 
 	public Path getFileParentLocation() {
-		return this.fileParentLocation;
+		return getRefFname().getParent();
 	}
 
 	public String getFileRealParent() {
-		return fileParentLocation.getFileName().toString();
+		return table.getParentName(row);
 	}
 
-	public String getFileMD5() {
+	/*
+	 * The MD5 of the file, worked out the first time. In an encrypted
+	 * backup that is of the decrypted content, the MD5 the hash manifest
+	 * records, not of the ciphertext on disk.
+	 */
+	public synchronized String getFileMD5() {
+		if (this.md5sum == null) {
+			try {
+				this.md5sum = table.isEncrypted() ? decryptedMD5()
+					: Phone.getFileHash("MD5", getFromLocation().toString());
+			} catch (NoSuchAlgorithmException | IOException
+					| ExceptionManager e) {
+				return null;
+			}
+		}
 		return this.md5sum;
 	}
 
+	private String decryptedMD5() throws IOException, ExceptionManager {
+		FileDigests digests = new FileDigests(List.of("MD5"));
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = getMediaFile().openInputStream()) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digests.update(buffer, 0, read);
+			}
+		}
+		return digests.get("MD5");
+	}
+
 	public EncryptedFile getMediaFile() {
-		return mediaFile;
+		return table.getEncryptedFile(row);
 	}
 
-}
\ No newline at end of file
+}
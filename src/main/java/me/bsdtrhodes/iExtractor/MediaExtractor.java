@@ -0,0 +1,383 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/*
+ * Extract media files from a ManifestTable on a pool of workers instead
+ * of one at a time. Decrypting keeps a core busy, so encrypted backups
+ * get one worker per core; plain copies mostly wait on the disk and get
+ * more, to keep the drive's queue full (see ContextManager).
+ *
+ * Files are queued largest first by default, so the last few files
+ * running are small ones and no single large video is left running on
+ * its own at the end. ReadScheduler can queue them in disk order
+ * instead, for drives where seeking costs more than that tail.
+ *
+ * A file that fails is logged and counted and the rest carry on;
+ * extract() reports the failures once everything is done.
+ *
+ * Every extractor of the same kind (encrypted or plain) shares one
+ * pool, so several directories can be extracted at once without
+ * starting more workers. Rows are claimed in
+ * the ManifestTable before they are worked on; a row another extraction
+ * already has is counted as skipped rather than done twice.
+ *
+ * With an OutputSink the files go into its archive instead. Small files
+ * are read before the archive is locked, so the workers still decrypt
+ * side by side and only the writing is done one file at a time.
+ *
+ * The counters can be read at any time, the listener is called by the
+ * workers after every file so a Task can update its progress.
+ */
+public class MediaExtractor {
+	/* Files up to this size are read in full before being archived. */
+	private static final long STAGE_SIZE = 8L * 1024 * 1024;
+
+	/* Sized by ContextManager on first use, one for each kind. */
+	private static ForkJoinPool encryptedPool = null;
+	private static ForkJoinPool plainPool = null;
+
+	private final ManifestTable table;
+	private final boolean encrypted;
+	private final HashManifest hashManifest;
+	private final ExtractionJournal journal;
+	private final ContentStore store;
+	private final OutputSink sink;
+
+	private final AtomicLong filesTotal = new AtomicLong();
+	private final AtomicLong bytesTotal = new AtomicLong();
+	private final AtomicLong filesDone = new AtomicLong();
+	private final AtomicLong bytesDone = new AtomicLong();
+	private final AtomicLong filesSkipped = new AtomicLong();
+	private final AtomicLong filesFailed = new AtomicLong();
+	private volatile long startNanos;
+	private volatile long endNanos;
+	private volatile boolean cancelled = false;
+	private Consumer<MediaExtractor> listener = extractor -> { };
+
+	/*
+	 * hashManifest may be null when hashes are not being recorded,
+	 * journal when the run is not to be resumable, store when files are
+	 * not deduplicated and sink when they are written out as loose
+	 * files. An archive is written from scratch every time, so the
+	 * journal and store are not used with a sink.
+	 */
+	public MediaExtractor(ManifestTable table, boolean encrypted,
+			HashManifest hashManifest, ExtractionJournal journal,
+			ContentStore store, OutputSink sink) {
+		this.table = table;
+		this.encrypted = encrypted;
+		this.hashManifest = hashManifest;
+		this.journal = (sink == null) ? journal : null;
+		this.store = (sink == null) ? store : null;
+		this.sink = sink;
+	}
+
+	public void setListener(Consumer<MediaExtractor> listener) {
+		this.listener = listener;
+	}
+
+	public void extractAll() throws ExceptionManager {
+		extract(IntStream.range(0, this.table.size()).toArray());
+	}
+
+	/* Extract these rows of the table, and wait for them. */
+	public void extract(int[] rows) throws ExceptionManager {
+		ReadScheduler.Order order = ContextManager.getReadOrder();
+		int[] queue = ReadScheduler.order(this.table, rows, order);
+		for (int row : queue) {
+			this.filesTotal.incrementAndGet();
+			this.bytesTotal.addAndGet(sizeOf(row));
+		}
+
+		ForkJoinPool workers = pool(this.encrypted);
+		CountDownLatch finished = new CountDownLatch(queue.length);
+		ReadScheduler scheduler = (order == ReadScheduler.Order.LOCALITY
+				&& ContextManager.getReadAhead() > 0) ? new ReadScheduler(
+				this.table, readsSource()) : null;
+		/* External submissions are taken in the order they are made. */
+		IntConsumer submit = row -> workers.execute(() -> {
+			try {
+				extractRow(row);
+			} finally {
+				if (scheduler != null) {
+					scheduler.done(row);
+				}
+				finished.countDown();
+			}
+		});
+		this.endNanos = 0;
+		this.startNanos = System.nanoTime();
+		try {
+			if (scheduler != null) {
+				scheduler.start(queue, submit);
+			} else {
+				for (int row : queue) {
+					submit.accept(row);
+				}
+			}
+			finished.await();
+		} catch (InterruptedException e) {
+			/* The queued rows see this and return straight away. */
+			this.cancelled = true;
+			if (scheduler != null) {
+				scheduler.stop();
+			}
+			Thread.currentThread().interrupt();
+			throw new ExceptionManager("Media extraction was interrupted",
+					e, false);
+		} finally {
+			this.endNanos = System.nanoTime();
+		}
+
+		ExceptionManager.logInfo("Media extraction with " + workers
+				.getParallelism() + " workers in " + order + " order: "
+				+ getSummary());
+		if (scheduler != null) {
+			ExceptionManager.logInfo("Read-ahead: " + scheduler
+					.getSummary());
+		}
+		if (this.store != null) {
+			ExceptionManager.logInfo("Object store: " + this.store
+					.getSummary());
+		}
+		if (this.filesFailed.get() > 0) {
+			throw new ExceptionManager(this.filesFailed.get() + " of "
+					+ this.filesTotal.get() + " media files could not be"
+					+ " extracted, see the log for details.");
+		}
+	}
+
+	/* Linked files are only read to hash them. */
+	private boolean readsSource() {
+		return this.encrypted || this.sink != null || ContextManager
+				.getLinkMode() == FileLinker.Mode.COPY || ContextManager
+				.getHashLinks();
+	}
+
+	private static synchronized ForkJoinPool pool(boolean encrypted) {
+		if (encrypted) {
+			if (encryptedPool == null) {
+				encryptedPool = new ForkJoinPool(ContextManager
+						.getMediaWorkers(true));
+			}
+			return encryptedPool;
+		}
+		if (plainPool == null) {
+			plainPool = new ForkJoinPool(ContextManager.getMediaWorkers(
+					false));
+		}
+		return plainPool;
+	}
+
+	/* One file; nothing thrown from here stops the other workers. */
+	private void extractRow(int row) {
+		if (this.cancelled) {
+			return;
+		}
+		if (! this.table.claim(row)) {
+			/* Done, or being done, by another extraction. */
+			this.filesSkipped.incrementAndGet();
+			this.filesDone.incrementAndGet();
+			this.listener.accept(this);
+			return;
+		}
+		Path destination = this.table.getRestorePath(row);
+		try {
+			if (this.journal != null) {
+				/* Finished by an earlier run. */
+				if (this.journal.isDone(destination)) {
+					this.filesSkipped.incrementAndGet();
+					return;
+				}
+				/* Anything else there was cut short, start it again. */
+				Files.deleteIfExists(destination);
+			}
+			Path source = this.table.getBackupPath(row);
+			/* Listed in the Manifest but not in the backup. */
+			if (! this.encrypted && ! Files.exists(source)) {
+				this.filesSkipped.incrementAndGet();
+				return;
+			}
+			if (this.sink != null) {
+				FileDigests digests = FileDigests.create();
+				archive(row, source, destination, digests);
+				finished(row, destination, digests);
+				return;
+			}
+			/* Linked plain files already take no space of their own. */
+			boolean viaStore = this.store != null && (this.encrypted
+					|| ContextManager.getLinkMode() == FileLinker.Mode.COPY);
+			FileDigests digests = viaStore ? this.store.newDigests()
+					: FileDigests.create();
+			Path target = viaStore ? this.store.newTemporary()
+					: destination;
+			try {
+				if (this.encrypted) {
+					this.table.getEncryptedFile(row).decryptTo(target,
+							digests);
+				} else if (viaStore) {
+					digests.copy(source, target);
+				} else {
+					digests.link(source, destination);
+				}
+				if (viaStore) {
+					this.store.commit(target, digests, destination);
+				}
+			} finally {
+				if (viaStore) {
+					Files.deleteIfExists(target);
+				}
+			}
+			finished(row, destination, digests);
+		} catch (FileAlreadyExistsException e) {
+			/* Already extracted, leave it alone. */
+			this.filesSkipped.incrementAndGet();
+		} catch (IOException | InvalidKeyException | RuntimeException e) {
+			this.filesFailed.incrementAndGet();
+			this.table.release(row);
+			ExceptionManager.logWarning("Unable to extract " + this.table
+					.getRelativePath(row) + " to " + destination, e);
+		} finally {
+			this.filesDone.incrementAndGet();
+			this.listener.accept(this);
+		}
+	}
+
+	private void finished(int row, Path destination, FileDigests digests)
+			throws ExceptionManager {
+		if (this.hashManifest != null) {
+			this.hashManifest.record(destination, digests);
+		}
+		if (this.journal != null) {
+			this.journal.record(destination, digests);
+		}
+		this.bytesDone.addAndGet(sizeOf(row));
+	}
+
+	/* Add one file to the sink's archive under its restore path. */
+	private void archive(int row, Path source, Path destination,
+			FileDigests digests) throws IOException, ExceptionManager {
+		String name = this.sink.getEntryName(destination);
+		try (SeekableByteChannel in = this.encrypted ? this.table
+				.getEncryptedFile(row).openChannel() : Files.newByteChannel(
+				source)) {
+			long size = in.size();
+			InputStream data = Channels.newInputStream(in);
+			if (size <= STAGE_SIZE) {
+				byte[] staged = data.readNBytes((int) size);
+				digests.update(staged, 0, staged.length);
+				this.sink.put(name, size, new ByteArrayInputStream(staged),
+						null, false);
+			} else {
+				this.sink.put(name, size, data, digests, false);
+			}
+		}
+	}
+
+	private long sizeOf(int row) {
+		return Math.max(0L, this.table.getSize(row));
+	}
+
+	public long getFilesTotal() {
+		return filesTotal.get();
+	}
+
+	public long getFilesDone() {
+		return filesDone.get();
+	}
+
+	public long getFilesSkipped() {
+		return filesSkipped.get();
+	}
+
+	public long getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	public long getBytesTotal() {
+		return bytesTotal.get();
+	}
+
+	public long getBytesDone() {
+		return bytesDone.get();
+	}
+
+	/* Average bytes per second since the start. */
+	public long getBytesPerSecond() {
+		long end = (this.endNanos == 0) ? System.nanoTime() : this.endNanos;
+		long elapsed = end - this.startNanos;
+		if (this.startNanos == 0 || elapsed <= 0) {
+			return 0;
+		}
+		return this.bytesDone.get() * 1_000_000_000L / elapsed;
+	}
+
+	/* For example "120 of 4000 files, 1.2 GB of 9.8 GB, 310 MB/s". */
+	public String getSummary() {
+		String summary = getFilesDone() + " of " + getFilesTotal()
+				+ " files, " + formatBytes(getBytesDone()) + " of "
+				+ formatBytes(getBytesTotal()) + ", " + getBytesPerSecond()
+				/ 1_000_000 + " MB/s";
+		if (getFilesSkipped() > 0) {
+			summary += ", " + getFilesSkipped() + " skipped";
+		}
+		if (getFilesFailed() > 0) {
+			summary += ", " + getFilesFailed() + " failed";
+		}
+		return summary;
+	}
+
+	/* 512 bytes, 1.4 MB, 2.3 GB. */
+	public static String formatBytes(long bytes) {
+		if (bytes < 1000) {
+			return bytes + " bytes";
+		}
+		String[] units = { "KB", "MB", "GB", "TB" };
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1000 && unit < units.length - 1) {
+			value /= 1000;
+			unit++;
+		}
+		return String.format("%.1f %s", value, units[unit]);
+	}
+}
@@ -0,0 +1,512 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Write the extraction into one TAR or ZIP archive instead of a loose
+ * file per photo (-DiExtractor.output=TAR or ZIP). Hundreds of thousands
+ * of small files are hard on NTFS and network shares; one archive is a
+ * single stream of large sequential writes.
+ *
+ * The archive goes to -DiExtractor.outputArchive, which may be a named
+ * pipe, or "-" for standard output so it can be handed straight to
+ * evidence storage, for example:
+ *
+ *   java -DiExtractor.output=TAR -DiExtractor.outputArchive=- ... \
+ *       | ssh vault 'cat > case.tar'
+ *
+ * Entries are written one at a time, so put() is synchronized. Media is
+ * never compressed. Text outputs (the reports and the hash manifest)
+ * are compressed unless -DiExtractor.compressReports=false; in a ZIP
+ * that is the entry's own deflate, in a TAR the entry is gzipped and
+ * gets a .gz suffix.
+ *
+ * A failed write to the archive leaves it unusable, every later put()
+ * fails too. A source that fails part way is padded out so the entries
+ * after it still line up.
+ */
+public abstract class OutputSink implements Closeable {
+	public enum Format {
+		DIRECTORY, TAR, ZIP
+	}
+
+	private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final int COPY_SIZE = 1024 * 1024;
+
+	private final Path restoreLocation;
+	private final String description;
+	private final Guard out;
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private boolean closed = false;
+
+	protected OutputSink(Path restoreLocation, OutputStream destination,
+			String description) {
+		this.restoreLocation = restoreLocation;
+		this.description = description;
+		this.out = new Guard(new BufferedOutputStream(destination,
+				BUFFER_SIZE));
+	}
+
+	/* Open the archive chosen in ContextManager, null for DIRECTORY. */
+	public static OutputSink open(Path restoreLocation) throws
+		ExceptionManager {
+		Format format = ContextManager.getOutputFormat();
+		if (format == Format.DIRECTORY) {
+			return null;
+		}
+		String target = ContextManager.getOutputArchive();
+		try {
+			OutputStream destination;
+			String description;
+			if (target.equals("-")) {
+				/* Not System.out, a PrintStream hides write errors. */
+				destination = new FileOutputStream(FileDescriptor.out);
+				description = "standard output";
+			} else {
+				Path archive = target.isEmpty() ? restoreLocation.resolve(
+						"Extraction." + format.name().toLowerCase())
+						: Paths.get(target);
+				destination = Files.newOutputStream(archive);
+				description = archive.toString();
+			}
+			if (format == Format.TAR) {
+				return new Tar(restoreLocation, destination, description);
+			}
+			return new Zip(restoreLocation, destination, description);
+		} catch (IOException e) {
+			throw new ExceptionManager("Unable to open the " + format
+					+ " archive " + target, e, true);
+		}
+	}
+
+	/* The archive name of a file under the restore directory. */
+	public String getEntryName(Path file) {
+		String name = this.restoreLocation.relativize(file).toString();
+		return name.replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	/*
+	 * Add size bytes of data as one entry. Anything read is added to
+	 * digests too, which may be null.
+	 */
+	public synchronized void put(String name, long size, InputStream data,
+			FileDigests digests, boolean text) throws IOException {
+		if (this.closed) {
+			throw new IOException("The archive " + this.description
+					+ " is already closed");
+		}
+		if (this.out.failed) {
+			throw new IOException("The archive " + this.description
+					+ " is unusable after an earlier write error");
+		}
+		boolean compress = text && ContextManager.getCompressReports();
+		writeEntry(this.out, name, size, digests == null ? data
+				: new DigestingInputStream(data, digests), compress);
+		this.entries.incrementAndGet();
+		this.bytes.addAndGet(size);
+	}
+
+	/* Add a file from the restore directory, such as a report. */
+	public void putFile(Path file, boolean text) throws IOException {
+		try (InputStream data = Files.newInputStream(file)) {
+			put(getEntryName(file), Files.size(file), data, null, text);
+		}
+	}
+
+	/*
+	 * A report is still written to the restore directory, where the
+	 * viewers open it, and goes into the archive when it is closed.
+	 */
+	public BufferedWriter openReport(Path file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files
+				.newOutputStream(file), StandardCharsets.UTF_8)) {
+			private boolean finished = false;
+
+			@Override
+			public void close() throws IOException {
+				if (this.finished) {
+					return;
+				}
+				this.finished = true;
+				super.close();
+				putFile(file, true);
+			}
+		};
+	}
+
+	/* Write the archive's trailer and close it. */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			finish(this.out);
+			this.out.flush();
+		} finally {
+			this.out.close();
+		}
+		ExceptionManager.logInfo("Archive " + this.description + ": "
+				+ getSummary());
+	}
+
+	/* For example "4000 entries, 9.8 GB". */
+	public String getSummary() {
+		return this.entries.get() + " entries, " + MediaExtractor
+				.formatBytes(this.bytes.get());
+	}
+
+	protected abstract void writeEntry(OutputStream out, String name,
+			long size, InputStream data, boolean compress) throws IOException;
+
+	protected abstract void finish(OutputStream out) throws IOException;
+
+	/*
+	 * Copy up to size bytes, returns how many there were. Only reading
+	 * can fail quietly here, a write error is left to the Guard.
+	 */
+	protected static long copy(InputStream data, OutputStream out,
+			long size) throws IOException {
+		byte[] buffer = new byte[COPY_SIZE];
+		long copied = 0;
+		while (copied < size) {
+			int count = data.read(buffer, 0, (int) Math.min(buffer.length,
+					size - copied));
+			if (count < 0) {
+				break;
+			}
+			out.write(buffer, 0, count);
+			copied += count;
+		}
+		return copied;
+	}
+
+	protected static boolean isBroken(OutputStream out) {
+		return (out instanceof Guard) && ((Guard) out).failed;
+	}
+
+	/* Remembers a failed write so the archive is not written past it. */
+	private static class Guard extends FilterOutputStream {
+		private boolean failed = false;
+
+		Guard(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				this.out.write(b);
+			} catch (IOException e) {
+				this.failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				this.out.write(b, off, len);
+			} catch (IOException e) {
+				this.failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				this.out.flush();
+			} catch (IOException e) {
+				this.failed = true;
+				throw e;
+			}
+		}
+	}
+
+	private static class DigestingInputStream extends InputStream {
+		private final InputStream in;
+		private final FileDigests digests;
+
+		DigestingInputStream(InputStream in, FileDigests digests) {
+			this.in = in;
+			this.digests = digests;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) {
+				this.digests.update(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = this.in.read(b, off, len);
+			if (count > 0) {
+				this.digests.update(b, off, count);
+			}
+			return count;
+		}
+	}
+
+	/*
+	 * POSIX ustar. Names longer than the header allows, names that are
+	 * not ASCII and entries of 8 GiB or more get a pax header first.
+	 */
+	static class Tar extends OutputSink {
+		private static final int BLOCK = 512;
+		private static final long MAX_SIZE = 077777777777L;
+
+		Tar(Path restoreLocation, OutputStream destination,
+				String description) {
+			super(restoreLocation, destination, description);
+		}
+
+		@Override
+		protected void writeEntry(OutputStream out, String name, long size,
+				InputStream data, boolean compress) throws IOException {
+			if (compress) {
+				/* The header needs the size, so gzip it first. */
+				Path gzip = Files.createTempFile("iExtractor", ".gz");
+				try {
+					try (OutputStream zipped = new GZIPOutputStream(Files
+							.newOutputStream(gzip), COPY_SIZE)) {
+						copy(data, zipped, size);
+					}
+					try (InputStream zipped = Files.newInputStream(gzip)) {
+						writeEntry(out, name + ".gz", Files.size(gzip),
+								zipped, false);
+					}
+				} finally {
+					Files.deleteIfExists(gzip);
+				}
+				return;
+			}
+
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			boolean ascii = nameBytes.length == name.length();
+			if (nameBytes.length > 100 || ! ascii || size > MAX_SIZE) {
+				StringBuilder pax = new StringBuilder();
+				if (nameBytes.length > 100 || ! ascii) {
+					pax.append(paxRecord("path", name));
+				}
+				if (size > MAX_SIZE) {
+					pax.append(paxRecord("size", Long.toString(size)));
+				}
+				byte[] records = pax.toString().getBytes(
+						StandardCharsets.UTF_8);
+				out.write(header("PaxHeaders/" + shortName(name),
+						records.length, (byte) 'x'));
+				out.write(records);
+				pad(out, records.length);
+			}
+			out.write(header(shortName(name), Math.min(size, MAX_SIZE),
+					(byte) '0'));
+
+			long copied = 0;
+			try {
+				copied = copy(data, out, size);
+			} finally {
+				/* Keep the next header on its block after a read failure. */
+				if (! isBroken(out)) {
+					fill(out, size - copied);
+					pad(out, size);
+				}
+			}
+			if (copied < size) {
+				throw new IOException(name + " ended after " + copied
+						+ " of " + size + " bytes");
+			}
+		}
+
+		@Override
+		protected void finish(OutputStream out) throws IOException {
+			out.write(new byte[2 * BLOCK]);
+		}
+
+		/* "len key=value\n", len counting its own digits. */
+		static String paxRecord(String key, String value) {
+			int body = (" " + key + "=" + value + "\n").getBytes(
+					StandardCharsets.UTF_8).length;
+			int length = body + Integer.toString(body).length();
+			if (Integer.toString(length).length() > Integer.toString(body)
+					.length()) {
+				length++;
+			}
+			return length + " " + key + "=" + value + "\n";
+		}
+
+		/* The ASCII tail of a name, for readers that ignore pax. */
+		private static String shortName(String name) {
+			String ascii = name.replaceAll("[^\\x20-\\x7e]", "_");
+			return ascii.length() > 100 ? ascii.substring(ascii.length()
+					- 100) : ascii;
+		}
+
+		static byte[] header(String name, long size, byte type) {
+			byte[] header = new byte[BLOCK];
+			put(header, 0, 100, name);
+			put(header, 100, 8, "0000644");
+			put(header, 108, 8, "0000000");
+			put(header, 116, 8, "0000000");
+			put(header, 124, 12, String.format("%011o", size));
+			put(header, 136, 12, String.format("%011o", System
+					.currentTimeMillis() / 1000));
+			header[156] = type;
+			put(header, 257, 6, "ustar");
+			put(header, 263, 2, "00");
+			/* The checksum is worked out with its own field as spaces. */
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			long checksum = 0;
+			for (byte b : header) {
+				checksum += b & 0xff;
+			}
+			put(header, 148, 7, String.format("%06o", checksum));
+			return header;
+		}
+
+		private static void put(byte[] header, int offset, int length,
+				String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(bytes, 0, header, offset, Math.min(length,
+					bytes.length));
+		}
+
+		private static void fill(OutputStream out, long count) throws
+			IOException {
+			byte[] zeros = new byte[BLOCK];
+			while (count > 0) {
+				int chunk = (int) Math.min(zeros.length, count);
+				out.write(zeros, 0, chunk);
+				count -= chunk;
+			}
+		}
+
+		private static void pad(OutputStream out, long size) throws
+			IOException {
+			long remainder = size % BLOCK;
+			if (remainder != 0) {
+				fill(out, BLOCK - remainder);
+			}
+		}
+	}
+
+	/*
+	 * ZIP through java.util.zip, which streams without knowing the size
+	 * or CRC up front and switches to Zip64 by itself. A true STORED
+	 * entry needs the CRC before its data, so media is deflated at level
+	 * 0 instead: stored blocks, a few bytes of framing per 64 KiB.
+	 *
+	 * Names are UTF-8 with the language encoding flag set. Info-ZIP's
+	 * unzip ignores that flag for entries made on "FAT", which is what
+	 * java.util.zip claims, so non-ASCII names also carry the Info-ZIP
+	 * Unicode Path extra field (0x7075).
+	 */
+	static class Zip extends OutputSink {
+		private ZipOutputStream zip = null;
+
+		Zip(Path restoreLocation, OutputStream destination,
+				String description) {
+			super(restoreLocation, destination, description);
+		}
+
+		@Override
+		protected void writeEntry(OutputStream out, String name, long size,
+				InputStream data, boolean compress) throws IOException {
+			if (this.zip == null) {
+				this.zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+			}
+			this.zip.setLevel(compress ? Deflater.DEFAULT_COMPRESSION
+					: Deflater.NO_COMPRESSION);
+			ZipEntry entry = new ZipEntry(name);
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			if (utf8.length != name.length()) {
+				entry.setExtra(unicodePath(utf8));
+			}
+			this.zip.putNextEntry(entry);
+			long copied = 0;
+			try {
+				copied = copy(data, this.zip, size);
+			} finally {
+				this.zip.closeEntry();
+			}
+			if (copied < size) {
+				throw new IOException(name + " ended after " + copied
+						+ " of " + size + " bytes");
+			}
+		}
+
+		/* Tag, size, version 1, CRC of the header name, the name. */
+		private static byte[] unicodePath(byte[] utf8) {
+			CRC32 crc = new CRC32();
+			crc.update(utf8);
+			ByteBuffer extra = ByteBuffer.allocate(9 + utf8.length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			extra.putShort((short) 0x7075)
+					.putShort((short) (5 + utf8.length))
+					.put((byte) 1)
+					.putInt((int) crc.getValue())
+					.put(utf8);
+			return extra.array();
+		}
+
+		@Override
+		protected void finish(OutputStream out) throws IOException {
+			if (this.zip == null) {
+				this.zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+			}
+			this.zip.finish();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+/*
+ * Split one large encrypted file into segments and decrypt them on a
+ * fork/join pool. In CBC mode a block only needs the ciphertext block in
+ * front of it as its IV, so every segment can be decrypted on its own and
+ * written back at the same offset with positional channel writes.
+ *
+ * KeyBag decides when to use this, see ContextManager.getParallelThreshold().
+ */
+public class ParallelDecryptor extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/* Segment size, a multiple of the 16 byte AES block. */
+	private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final int BLOCK_SIZE = 16;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	/* Each pool thread reuses an input and output segment buffer. */
+	private static final ThreadLocal<ByteBuffer[]> SEGMENT_BUFFERS =
+			ThreadLocal.withInitial(() -> new ByteBuffer[] {
+				ByteBuffer.allocateDirect(SEGMENT_SIZE),
+				ByteBuffer.allocateDirect(SEGMENT_SIZE) });
+
+	private final Key key;
+	private final byte[] protectionClass;
+	private final FileChannel source, destination;
+	private final long start, end, plainSize;
+
+	/*
+	 * start and end are ciphertext offsets, plainSize is where the real
+	 * data stops so the padding is never written.
+	 */
+	private ParallelDecryptor(Key key, byte[] protectionClass,
+			FileChannel source, FileChannel destination, long start,
+			long end, long plainSize) {
+		this.key = key;
+		this.protectionClass = protectionClass;
+		this.source = source;
+		this.destination = destination;
+		this.start = start;
+		this.end = end;
+		this.plainSize = plainSize;
+	}
+
+	/* Decrypt the whole source, size is -1 when the real size is unknown. */
+	public static void decrypt(Key key, byte[] protectionClass,
+			FileChannel source, FileChannel destination, long size)
+			throws IOException {
+		/* A trailing partial block cannot be decrypted; drop it. */
+		long cipherSize = source.size() & ~(BLOCK_SIZE - 1L);
+		long plainSize = (size == -1L) ? cipherSize : Math.min(size,
+				cipherSize);
+
+		try {
+			POOL.invoke(new ParallelDecryptor(key, protectionClass, source,
+					destination, 0, cipherSize, plainSize));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	protected void compute() {
+		if (this.start >= this.plainSize) {
+			return;
+		}
+		if (this.end - this.start > SEGMENT_SIZE) {
+			/* Split on a segment boundary so every piece is aligned. */
+			long segments = (this.end - this.start) / SEGMENT_SIZE;
+			long middle = this.start + (segments / 2) * SEGMENT_SIZE;
+			if (middle == this.start) {
+				middle += SEGMENT_SIZE;
+			}
+			invokeAll(new ParallelDecryptor(this.key, this.protectionClass,
+					this.source, this.destination, this.start, middle,
+					this.plainSize),
+				new ParallelDecryptor(this.key, this.protectionClass,
+					this.source, this.destination, middle, this.end,
+					this.plainSize));
+			return;
+		}
+
+		try {
+			decryptSegment();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void decryptSegment() throws IOException {
+		ByteBuffer[] buffers = SEGMENT_BUFFERS.get();
+		ByteBuffer input = buffers[0];
+		ByteBuffer output = buffers[1];
+
+		/* The IV is the previous ciphertext block, zero for the first. */
+		byte[] iv = new byte[BLOCK_SIZE];
+		if (this.start > 0) {
+			readFully(ByteBuffer.wrap(iv), this.start - BLOCK_SIZE);
+		}
+
+		input.clear();
+		input.limit((int) (this.end - this.start));
+		readFully(input, this.start);
+		input.flip();
+		output.clear();
+
+		Cipher c = KeyBag.getCipher(KeyBag.FILE_CIPHER,
+				Cipher.DECRYPT_MODE, this.protectionClass);
+		try {
+			c.init(Cipher.DECRYPT_MODE, this.key, new IvParameterSpec(iv));
+			c.doFinal(input, output);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to decrypt segment at "
+					+ this.start, e);
+		}
+		output.flip();
+
+		/* Clip the padding off the final segment. */
+		long stop = Math.min(this.end, this.plainSize);
+		output.limit((int) (stop - this.start));
+
+		long position = this.start;
+		while (output.hasRemaining()) {
+			position += this.destination.write(output, position);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.source.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of file at "
+						+ position);
+			}
+			position += read;
+		}
+	}
+}
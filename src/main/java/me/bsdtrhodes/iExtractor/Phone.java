@@ -308,8 +308,8 @@ public class Phone {
 ******************************************************************************
 */
 	/* Method to get file hash into a string. */
-	protected String getFileHash(String algorithm, File f) throws IOException,
-		NoSuchAlgorithmException {
+	protected static String getFileHash(String algorithm, File f) throws
+		IOException, NoSuchAlgorithmException {
 		MessageDigest md = MessageDigest.getInstance(algorithm);
 
 		try (BufferedInputStream in = new BufferedInputStream((new
@@ -325,7 +325,7 @@ public class Phone {
 	}
 
 	/* Method to get hash from file as a string. */
-	protected String getFileHash(String algorithm, String floc) throws
+	protected static String getFileHash(String algorithm, String floc) throws
 		IOException, NoSuchAlgorithmException {
 		File f = new File(floc);
 		MessageDigest md = MessageDigest.getInstance(algorithm);
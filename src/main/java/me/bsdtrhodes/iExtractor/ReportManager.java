@@ -56,8 +56,15 @@ public class ReportManager {
 
     public ReportManager(Path reportFileName, Phone thePhone) throws
     	IOException {
-        this.report = Files.newBufferedWriter(reportFileName,
-        		StandardCharsets.UTF_8);
+        this(reportFileName, thePhone, null);
+    }
+
+    /* With a sink the report also goes into its archive. */
+    public ReportManager(Path reportFileName, Phone thePhone,
+    	OutputSink sink) throws IOException {
+        this.report = (sink == null) ? Files.newBufferedWriter(
+        		reportFileName, StandardCharsets.UTF_8)
+        		: sink.openReport(reportFileName);
         this.thePhone = thePhone;
         writeHeader();
     }
@@ -24,8 +24,11 @@
  */
 package me.bsdtrhodes.iExtractor;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -39,17 +42,56 @@ import java.util.concurrent.TimeUnit;
 public class ThreadManager {
 
 	private final ExecutorService execSVS;
-	private final Map<Integer, Future<?>> jobMap;
+	private final Map<Integer, CompletableFuture<Void>> jobMap;
 
 	public ThreadManager(int poolSize) {
 		execSVS = Executors.newFixedThreadPool(poolSize);
-		jobMap = new HashMap<>();
+		jobMap = new ConcurrentHashMap<>();
 	}
 
 	/* Submit a thread project here. */
-	public void submitJob(Runnable job, int jid) {
-		Future<?> future = execSVS.submit(job);
+	public Future<Void> submitJob(Runnable job, int jid) {
+		CompletableFuture<Void> future = CompletableFuture.runAsync(job,
+				execSVS);
 		jobMap.put(jid, future);
+		return future;
+	}
+
+	/*
+	 * Submit a job that only starts once job "after" has finished. If
+	 * that job failed (or was never submitted) this one is skipped and
+	 * carries the failure along.
+	 */
+	public Future<Void> submitJob(Runnable job, int jid, int after) {
+		CompletableFuture<Void> parent = jobMap.get(after);
+		if (parent == null) {
+			throw new IllegalStateException("No job " + after
+					+ " to wait on for job " + jid);
+		}
+		CompletableFuture<Void> future = parent.thenRunAsync(job, execSVS);
+		jobMap.put(jid, future);
+		return future;
+	}
+
+	/*
+	 * Wait for every job submitted so far, dependent jobs included. This
+	 * has to happen before shutdown(), a job chained on to one that is
+	 * still running is only handed to the pool when its parent finishes.
+	 * Returns the jobs that failed by id, with the cause. A job skipped
+	 * because the job it waited on failed carries that job's cause.
+	 */
+	public Map<Integer, Throwable> awaitJobs() throws InterruptedException {
+		Map<Integer, Throwable> failed = new TreeMap<>();
+		for (Map.Entry<Integer, CompletableFuture<Void>> job : jobMap
+				.entrySet()) {
+			try {
+				job.getValue().get();
+			} catch (ExecutionException e) {
+				/* Keep waiting on the rest. */
+				failed.put(job.getKey(), e.getCause());
+			}
+		}
+		return failed;
 	}
 
 	/* Cleanup and return done, or permit waiting. */
@@ -0,0 +1,201 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Reads through the channel have to give the same bytes as decrypting
+ * the whole file, wherever they start and however big they are.
+ */
+public class DecryptingChannelTest {
+	private static final byte[] PROTECTION_CLASS = { 0, 0, 0, 4 };
+	private static final int[] SIZES = { 0, 1, 15, 16, 17, 4095, 65535,
+			65536, 65537, 200003 };
+
+	@TempDir
+	Path directory;
+
+	private final Random random = new Random(4);
+	private final SecretKeySpec key = newKey();
+
+	@Test
+	public void sizeWithAndWithoutManifestSize() throws Exception {
+		for (int size : SIZES) {
+			byte[] plain = plain(size);
+			Path file = encrypt(plain);
+			try (DecryptingChannel channel = open(file, size)) {
+				assertEquals(size, channel.size());
+			}
+			/* No size, the padding has to come off instead. */
+			try (DecryptingChannel channel = open(file, -1L)) {
+				assertEquals(size, channel.size());
+			}
+		}
+	}
+
+	@Test
+	public void sequentialReadsMatch() throws Exception {
+		for (int size : SIZES) {
+			byte[] plain = plain(size);
+			Path file = encrypt(plain);
+			for (long given : new long[] { size, -1L }) {
+				try (DecryptingChannel channel = open(file, given)) {
+					assertArrayEquals(plain, readAll(channel, 1000));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void randomOffsetReadsMatch() throws Exception {
+		byte[] plain = plain(200003);
+		Path file = encrypt(plain);
+		for (long given : new long[] { plain.length, -1L }) {
+			try (DecryptingChannel channel = open(file, given)) {
+				for (int i = 0; i < 500; i++) {
+					int offset = this.random.nextInt(plain.length);
+					int length = 1 + this.random.nextInt(i % 10 == 0
+							? 150000 : 100);
+					assertRead(plain, channel, offset, length);
+				}
+				/* Across a window boundary, and backwards over it. */
+				assertRead(plain, channel, 65530, 20);
+				assertRead(plain, channel, 65520, 16);
+				assertRead(plain, channel, plain.length - 1, 1);
+				assertRead(plain, channel, 0, 16);
+			}
+		}
+	}
+
+	@Test
+	public void readsPastTheEnd() throws Exception {
+		Path file = encrypt(plain(100));
+		try (DecryptingChannel channel = open(file, -1L)) {
+			ByteBuffer buffer = ByteBuffer.allocate(50);
+			channel.position(90);
+			assertEquals(10, channel.read(buffer));
+			assertEquals(-1, channel.read(buffer.clear()));
+			channel.position(1000);
+			assertEquals(-1, channel.read(buffer.clear()));
+		}
+	}
+
+	@Test
+	public void shorterManifestSizeWins() throws Exception {
+		byte[] plain = plain(100);
+		try (DecryptingChannel channel = open(encrypt(plain), 37)) {
+			assertEquals(37, channel.size());
+			assertArrayEquals(Arrays.copyOf(plain, 37), readAll(channel,
+					64));
+		}
+	}
+
+	@Test
+	public void readOnlyAndClosable() throws Exception {
+		DecryptingChannel channel = open(encrypt(plain(32)), 32);
+		assertThrows(NonWritableChannelException.class,
+				() -> channel.write(ByteBuffer.allocate(1)));
+		assertThrows(NonWritableChannelException.class,
+				() -> channel.truncate(0));
+		channel.close();
+		assertThrows(ClosedChannelException.class,
+				() -> channel.read(ByteBuffer.allocate(1)));
+	}
+
+	private static void assertRead(byte[] plain, DecryptingChannel channel,
+			int offset, int length) throws IOException {
+		int expected = Math.min(length, plain.length - offset);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		channel.position(offset);
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer);
+			if (count < 0) {
+				break;
+			}
+			total += count;
+		}
+		assertEquals(expected, total, "read at " + offset);
+		assertArrayEquals(Arrays.copyOfRange(plain, offset, offset
+				+ expected), Arrays.copyOf(buffer.array(), expected),
+				"read at " + offset);
+		assertEquals(offset + expected, channel.position());
+	}
+
+	private static byte[] readAll(DecryptingChannel channel, int chunk)
+			throws IOException {
+		ByteBuffer all = ByteBuffer.allocate((int) channel.size());
+		ByteBuffer buffer = ByteBuffer.allocate(chunk);
+		while (channel.read(buffer.clear()) >= 0) {
+			all.put(buffer.flip());
+		}
+		return all.array();
+	}
+
+	private DecryptingChannel open(Path file, long size) throws IOException {
+		return new DecryptingChannel(this.key, PROTECTION_CLASS, file, size);
+	}
+
+	private byte[] plain(int size) {
+		byte[] plain = new byte[size];
+		this.random.nextBytes(plain);
+		return plain;
+	}
+
+	/* The way a backup stores a file: AES-CBC, zero IV, PKCS#7. */
+	private Path encrypt(byte[] plain) throws Exception {
+		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		c.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(
+				new byte[16]));
+		Path file = Files.createTempFile(this.directory, "enc", ".bin");
+		Files.write(file, c.doFinal(plain));
+		return file;
+	}
+
+	private SecretKeySpec newKey() {
+		byte[] bytes = new byte[32];
+		this.random.nextBytes(bytes);
+		return new SecretKeySpec(bytes, "AES");
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* Replaying the journal an interrupted run left behind. */
+public class ExtractionJournalTest {
+	@TempDir
+	Path restore;
+
+	@Test
+	public void replaysCompleteLines() throws Exception {
+		Path a = file("a.txt", 3);
+		Path c = file("Media/c.jpg", 5);
+		journal("3\t900150983cd24fb0d6963f7d28e17f72\ta.txt\n"
+				+ "5\t\tMedia/c.jpg\n");
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		assertTrue(journal.isDone(a));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", journal.getMD5(a));
+		assertTrue(journal.isDone(c));
+		assertNull(journal.getMD5(c));
+		assertFalse(journal.isDone(file("other", 3)));
+	}
+
+	@Test
+	public void ignoresTornAndBrokenLines() throws Exception {
+		Path a = file("a.txt", 3);
+		Path b = file("b.txt", 4);
+		Path d = file("d.txt", 4);
+		journal("x\tmd5\tb.txt\n"
+				+ "no tabs at all\n"
+				+ "\n"
+				+ "3\tmd5a\ta.txt\n"
+				+ "4\tmd5d\td.t");
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		assertTrue(journal.isDone(a));
+		assertFalse(journal.isDone(b));
+		/* d.txt was still being written when the run died. */
+		assertFalse(journal.isDone(d));
+		assertNull(journal.getMD5(d));
+	}
+
+	@Test
+	public void dropsTheTornLineBeforeAppending() throws Exception {
+		Path a = file("a.txt", 3);
+		Path d = file("d.txt", 4);
+		journal("3\tmd5a\ta.txt\n4\tmd5d\td.t");
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		journal.record(d, digests(4));
+		assertEquals("3\tmd5a\ta.txt\n4\t" + digests(4).get("MD5")
+				+ "\td.txt\n", Files.readString(journalFile()));
+
+		ExtractionJournal resumed = new ExtractionJournal(this.restore);
+		assertTrue(resumed.isDone(a));
+		assertTrue(resumed.isDone(d));
+	}
+
+	@Test
+	public void toleratesTornMultibyteNames() throws Exception {
+		Path a = file("a.txt", 3);
+		byte[] torn = "2\tmd5\tcaf\u00e9".getBytes(StandardCharsets.UTF_8);
+		byte[] contents = ("3\tmd5a\ta.txt\n").getBytes(
+				StandardCharsets.UTF_8);
+		byte[] all = Arrays.copyOf(contents, contents.length
+				+ torn.length - 1);
+		/* The last byte of the two byte e-acute never made it. */
+		System.arraycopy(torn, 0, all, contents.length, torn.length - 1);
+		Files.write(journalFile(), all);
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		assertTrue(journal.isDone(a));
+		assertArrayEquals(contents, Files.readAllBytes(journalFile()));
+	}
+
+	@Test
+	public void laterLinesWin() throws Exception {
+		Path a = file("a.txt", 3);
+		journal("3\tfirst\ta.txt\n9\tsecond\ta.txt\n");
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		assertFalse(journal.isDone(a));
+		assertEquals("second", journal.getMD5(a));
+	}
+
+	@Test
+	public void changedSizeIsNotDone() throws Exception {
+		Path a = file("a.txt", 3);
+		journal("3\tmd5a\ta.txt\n");
+		Files.write(a, new byte[7]);
+		assertFalse(new ExtractionJournal(this.restore).isDone(a));
+		Files.delete(a);
+		assertFalse(new ExtractionJournal(this.restore).isDone(a));
+	}
+
+	@Test
+	public void recordsSurviveARestart() throws Exception {
+		Path a = file("Media/DCIM/100APPLE/IMG_0001.JPG", 10);
+		ExtractionJournal journal = new ExtractionJournal(this.restore);
+		assertFalse(journal.isDone(a));
+		journal.record(a, digests(10));
+		assertTrue(journal.isDone(a));
+
+		ExtractionJournal resumed = new ExtractionJournal(this.restore);
+		assertTrue(resumed.isDone(a));
+		assertEquals(digests(10).get("MD5"), resumed.getMD5(a));
+	}
+
+	private Path file(String name, int size) throws IOException {
+		Path file = this.restore.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, new byte[size]);
+		return file;
+	}
+
+	private Path journalFile() {
+		return FilePairManager.EXTRACTIONJOURNAL.getDecryptedPath(
+				this.restore);
+	}
+
+	private void journal(String contents) throws IOException {
+		Files.writeString(journalFile(), contents);
+	}
+
+	/* The digests of size zero bytes, as the extractor would have them. */
+	private static FileDigests digests(int size) throws ExceptionManager {
+		FileDigests digests = new FileDigests(List.of("MD5"));
+		digests.update(new byte[size], 0, size);
+		return digests;
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* PKCS#7 padding on the last block of a decrypted file. */
+public class KeyBagTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	public void paddingLengthAcceptsEveryValidPad() {
+		for (int pad = 1; pad <= 16; pad++) {
+			byte[] block = new byte[16];
+			Arrays.fill(block, 16 - pad, 16, (byte) pad);
+			assertEquals(pad, KeyBag.paddingLength(block, 0));
+		}
+	}
+
+	@Test
+	public void paddingLengthRejectsInvalidPads() {
+		byte[] block = new byte[16];
+		assertEquals(0, KeyBag.paddingLength(block, 0));
+		block[15] = 17;
+		assertEquals(0, KeyBag.paddingLength(block, 0));
+		block[15] = (byte) 0xff;
+		assertEquals(0, KeyBag.paddingLength(block, 0));
+
+		/* Claims four bytes of padding, but only three match. */
+		Arrays.fill(block, 12, 16, (byte) 4);
+		block[12] = 3;
+		assertEquals(0, KeyBag.paddingLength(block, 0));
+	}
+
+	@Test
+	public void paddingLengthReadsAtOffset() {
+		byte[] window = new byte[64];
+		Arrays.fill(window, 16, 32, (byte) 16);
+		Arrays.fill(window, 46, 48, (byte) 2);
+		assertEquals(16, KeyBag.paddingLength(window, 16));
+		assertEquals(2, KeyBag.paddingLength(window, 32));
+		assertEquals(0, KeyBag.paddingLength(window, 48));
+	}
+
+	@Test
+	public void trimDropsPaddingWithoutSize() throws IOException {
+		byte[] data = new byte[48];
+		Arrays.fill(data, 0, 43, (byte) 'a');
+		Arrays.fill(data, 43, 48, (byte) 5);
+		assertEquals(43, trim(data, -1L));
+
+		/* A whole block of padding. */
+		data = new byte[32];
+		Arrays.fill(data, 16, 32, (byte) 16);
+		assertEquals(16, trim(data, -1L));
+	}
+
+	@Test
+	public void trimLeavesUnpaddedFilesAlone() throws IOException {
+		byte[] data = new byte[48];
+		Arrays.fill(data, (byte) 'a');
+		assertEquals(48, trim(data, -1L));
+		assertEquals(0, trim(new byte[0], -1L));
+		/* Not whole blocks, so not ours to cut. */
+		byte[] odd = new byte[20];
+		Arrays.fill(odd, (byte) 4);
+		assertEquals(20, trim(odd, -1L));
+	}
+
+	@Test
+	public void trimUsesTheSizeWhenKnown() throws IOException {
+		byte[] data = new byte[48];
+		Arrays.fill(data, 43, 48, (byte) 5);
+		/* The Manifest size wins over what looks like padding. */
+		assertEquals(45, trim(data, 45));
+		assertEquals(0, trim(data, 0));
+		assertEquals(64, trim(data, 64));
+	}
+
+	private long trim(byte[] data, long size) throws IOException {
+		Path file = Files.createTempFile(this.directory, "trim", ".bin");
+		Files.write(file, data);
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			KeyBag.trimToSize(channel, size);
+		}
+		return Files.size(file);
+	}
+}
@@ -0,0 +1,171 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.dd.plist.BinaryPropertyListWriter;
+import com.dd.plist.NSArray;
+import com.dd.plist.NSData;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSNumber;
+import com.dd.plist.NSObject;
+import com.dd.plist.NSString;
+import com.dd.plist.PropertyListParser;
+import com.dd.plist.UID;
+
+/*
+ * The decoder has to agree with the full dd-plist parse (the
+ * EncryptedFile fallback) on every blob it accepts.
+ */
+public class ManifestBlobDecoderTest {
+	private static final Path FILE = Paths.get("ab", "ab00");
+
+	@Test
+	public void matchesParserForSizes() throws Exception {
+		Random random = new Random(1);
+		long[] sizes = { 0, 1, 15, 16, 255, 256, 65535, 65536, 70000,
+				Integer.MAX_VALUE, 1L << 32, 5_000_000_000L };
+		for (long size : sizes) {
+			for (int pc = 1; pc <= 11; pc++) {
+				byte[] keyData = new byte[44];
+				random.nextBytes(keyData);
+				assertSameAsParser(blob(pc, size, keyData, 0));
+			}
+		}
+	}
+
+	@Test
+	public void matchesParserWithWideReferences() throws Exception {
+		/* Over 255 objects makes dd-plist use two byte references. */
+		byte[] keyData = new byte[44];
+		new Random(2).nextBytes(keyData);
+		assertSameAsParser(blob(3, 123456, keyData, 300));
+	}
+
+	@Test
+	public void keylessAndSizelessBlobs() throws Exception {
+		ManifestBlobDecoder decoder = ManifestBlobDecoder.forThread();
+		byte[] keyData = new byte[44];
+		Arrays.fill(keyData, (byte) 0x5a);
+		assertTrue(decoder.decode(blob(3, 10, keyData, 0)));
+		assertTrue(decoder.hasEncryptionKey());
+
+		/* A directory: no key, and none left over from the last blob. */
+		byte[] keyless = blob(4, 10, null, 0);
+		assertTrue(decoder.decode(keyless));
+		assertFalse(decoder.hasEncryptionKey());
+		assertArrayEquals(new byte[40], decoder.getEncryptionKey());
+		assertSameAsParser(keyless);
+
+		byte[] sizeless = blob(2, -1, keyData, 0);
+		assertTrue(decoder.decode(sizeless));
+		assertEquals(-1L, decoder.getSize());
+		assertSameAsParser(sizeless);
+	}
+
+	@Test
+	public void rejectsBrokenBlobs() throws Exception {
+		ManifestBlobDecoder decoder = ManifestBlobDecoder.forThread();
+		assertFalse(decoder.decode(null));
+		assertFalse(decoder.decode(new byte[0]));
+		assertFalse(decoder.decode(new byte[100]));
+
+		byte[] good = blob(3, 4096, new byte[44], 0);
+		for (int length = 0; length < good.length; length += 7) {
+			assertFalse(decoder.decode(Arrays.copyOf(good, length)));
+		}
+		/* A short NS.data cannot hold the class prefix and the key. */
+		assertFalse(decoder.decode(blob(3, 4096, new byte[43], 0)));
+	}
+
+	private static void assertSameAsParser(byte[] blob) throws Exception {
+		ManifestBlobDecoder decoder = ManifestBlobDecoder.forThread();
+		assertTrue(decoder.decode(blob));
+		EncryptedFile parsed = new EncryptedFile(FILE, null,
+				(NSDictionary) PropertyListParser.parse(blob));
+		assertEquals(parsed.getProtectionClass(),
+				decoder.getProtectionClass());
+		assertEquals(parsed.getSize(), decoder.getSize());
+		if (parsed.getEncryptionKey() == null) {
+			assertFalse(decoder.hasEncryptionKey());
+		} else {
+			assertTrue(decoder.hasEncryptionKey());
+			assertArrayEquals(parsed.getEncryptionKey(),
+					decoder.getEncryptionKey());
+		}
+	}
+
+	/*
+	 * An MBFile archive the way the Manifest stores one. size < 0 leaves
+	 * out Size, keyData null leaves out EncryptionKey, and filler adds
+	 * that many extra strings to $objects.
+	 */
+	static byte[] blob(int protectionClass, long size, byte[] keyData,
+			int filler) throws Exception {
+		NSDictionary file = new NSDictionary();
+		file.put("ProtectionClass", new NSNumber(protectionClass));
+		if (size >= 0) {
+			file.put("Size", new NSNumber(size));
+		}
+		file.put("RelativePath", uid(3));
+		NSObject[] objects = new NSObject[4 + filler];
+		objects[0] = new NSString("$null");
+		objects[1] = file;
+		objects[2] = new NSString("unused");
+		objects[3] = new NSString("Media/DCIM/100APPLE/IMG_0001.JPG");
+		if (keyData != null) {
+			NSDictionary key = new NSDictionary();
+			key.put("NS.data", new NSData(keyData));
+			objects[2] = key;
+			file.put("EncryptionKey", uid(2));
+		}
+		for (int i = 0; i < filler; i++) {
+			objects[4 + i] = new NSString("filler " + i);
+		}
+		NSDictionary top = new NSDictionary();
+		top.put("root", uid(1));
+		NSDictionary archive = new NSDictionary();
+		archive.put("$archiver", "NSKeyedArchiver");
+		archive.put("$version", 100000);
+		archive.put("$top", top);
+		archive.put("$objects", new NSArray(objects));
+		return BinaryPropertyListWriter.writeToArray(archive);
+	}
+
+	private static UID uid(int index) {
+		return new UID("ref" + index, new byte[] { (byte) index });
+	}
+}
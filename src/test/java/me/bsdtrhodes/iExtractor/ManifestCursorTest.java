@@ -0,0 +1,141 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* pathPrefix() as a range over the relativePath index. */
+public class ManifestCursorTest {
+	private static final String EMOJI = new String(Character.toChars(
+			0x1F600));
+	private static final String LAST = new String(Character.toChars(
+			Character.MAX_CODE_POINT));
+	private static final List<String> PATHS = List.of("", "M", "Media",
+			"Media/", "Media/DCIM/100APPLE/IMG_0001.JPG", "Media0",
+			"Media/\ud7ff", "Media/\ud7ffx", "Media/\ue000",
+			"Media/\uffff", "Media/\uffffa", "Media/" + EMOJI,
+			"Media/" + EMOJI + "x", "Media/" + new String(Character
+			.toChars(0x1F601)), "media/lower", "Medi\u00e4",
+			"Library/SMS/sms.db", "z" + LAST, "z" + LAST + "/end");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void limitIsTheNextCodePoint() {
+		assertEquals("Media0", ManifestCursor.prefixLimit("Media/"));
+		assertEquals("b", ManifestCursor.prefixLimit("a"));
+		assertEquals("x\u00e5", ManifestCursor.prefixLimit("x\u00e4"));
+		assertEquals("x" + new String(Character.toChars(0x1F601)),
+				ManifestCursor.prefixLimit("x" + EMOJI));
+	}
+
+	@Test
+	public void limitSkipsTheSurrogates() {
+		/* U+D800 to U+DFFF are not characters, the next one is U+E000. */
+		assertEquals("a\ue000", ManifestCursor.prefixLimit("a\ud7ff"));
+		assertEquals("a" + new String(Character.toChars(0x10000)),
+				ManifestCursor.prefixLimit("a\uffff"));
+	}
+
+	@Test
+	public void noLimitAfterTheLastCodePoint() {
+		assertNull(ManifestCursor.prefixLimit("a" + LAST));
+	}
+
+	@Test
+	public void limitSortsAfterEveryMatch() {
+		/* SQLite compares UTF-8 bytes, so check in that order too. */
+		for (String prefix : PATHS) {
+			String limit = prefix.isEmpty() ? null : ManifestCursor
+					.prefixLimit(prefix);
+			if (limit == null) {
+				continue;
+			}
+			for (String path : PATHS) {
+				byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+				boolean inRange = Arrays.compareUnsigned(bytes, prefix
+						.getBytes(StandardCharsets.UTF_8)) >= 0 && Arrays
+						.compareUnsigned(bytes, limit.getBytes(
+						StandardCharsets.UTF_8)) < 0;
+				assertEquals(path.startsWith(prefix), inRange, prefix
+						+ " / " + path);
+			}
+		}
+	}
+
+	@Test
+	public void pathPrefixMatchesStartsWith() throws Exception {
+		Path manifest = this.directory.resolve("Manifest.db");
+		try (Connection db = DriverManager.getConnection("jdbc:sqlite:"
+				+ manifest)) {
+			try (Statement create = db.createStatement()) {
+				create.execute("CREATE TABLE Files (fileID TEXT PRIMARY"
+						+ " KEY, domain TEXT, relativePath TEXT, flags"
+						+ " INTEGER, file BLOB)");
+				create.execute("CREATE INDEX FilesRelativePath ON"
+						+ " Files(relativePath)");
+			}
+			try (PreparedStatement insert = db.prepareStatement("INSERT"
+					+ " INTO Files VALUES (?, 'CameraRollDomain', ?, 1,"
+					+ " NULL)")) {
+				for (int i = 0; i < PATHS.size(); i++) {
+					insert.setString(1, String.format("%040x", i));
+					insert.setString(2, PATHS.get(i));
+					insert.executeUpdate();
+				}
+			}
+		}
+
+		/* The empty prefix and z + LAST skip the range, but still work. */
+		for (String prefix : PATHS) {
+			TreeSet<String> expected = PATHS.stream().filter(path -> path
+					.startsWith(prefix)).collect(Collectors.toCollection(
+					TreeSet::new));
+			try (Stream<ManifestEntry> rows = new ManifestCursor(manifest)
+					.pathPrefix(prefix).stream()) {
+				assertEquals(expected, rows.map(ManifestEntry
+						::getRelativePath).collect(Collectors.toCollection(
+						TreeSet::new)), "prefix " + prefix);
+			}
+		}
+	}
+}
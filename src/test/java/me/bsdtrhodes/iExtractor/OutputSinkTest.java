@@ -0,0 +1,316 @@
+/*-
+ * Copyright (c) 2025 Tom Rhodes. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package me.bsdtrhodes.iExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Archives written by OutputSink, read back with a minimal ustar/pax
+ * reader and with java.util.zip.
+ */
+public class OutputSinkTest {
+	private static final int BLOCK = 512;
+	private static final String LONG_NAME = "Media/" + "d".repeat(120)
+			+ "/IMG_0001.JPG";
+	private static final String UNICODE_NAME = "Media/Caf\u00e9 "
+			+ new String(Character.toChars(0x1F600)) + ".jpg";
+
+	@TempDir
+	Path restore;
+
+	@Test
+	public void paxRecordCountsItsOwnLength() {
+		for (int i = 0; i < 2000; i++) {
+			String value = "v".repeat(i);
+			assertRecord("path", value);
+			assertRecord("path", value + "\u00e9");
+		}
+		assertEquals("29 size=12345678901234567890\n", OutputSink.Tar
+				.paxRecord("size", "12345678901234567890"));
+		/* A 98 byte body plus two digits is 100, so three digits: 101. */
+		assertEquals("101 path=" + "v".repeat(91) + "\n", OutputSink.Tar
+				.paxRecord("path", "v".repeat(91)));
+	}
+
+	@Test
+	public void headerIsValidUstar() {
+		byte[] header = OutputSink.Tar.header("Media/IMG_0001.JPG", 1234,
+				(byte) '0');
+		assertEquals(BLOCK, header.length);
+		assertEquals("Media/IMG_0001.JPG", field(header, 0, 100));
+		assertEquals(1234, Long.parseLong(field(header, 124, 12), 8));
+		assertEquals('0', header[156]);
+		assertEquals("ustar", field(header, 257, 6));
+		assertEquals("00", field(header, 263, 2));
+		assertChecksum(header);
+
+		/* The largest size the octal field holds, 8 GiB less one. */
+		header = OutputSink.Tar.header("big", 077777777777L, (byte) '0');
+		assertEquals("77777777777", field(header, 124, 12));
+		assertChecksum(header);
+	}
+
+	@Test
+	public void tarRoundTrip() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("Media/IMG_0001.JPG", random(1000, 1));
+		entries.put(LONG_NAME, random(BLOCK, 2));
+		entries.put(UNICODE_NAME, random(3 * 1024 * 1024 + 7, 3));
+		entries.put("Media/empty", new byte[0]);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputSink sink = new OutputSink.Tar(this.restore, out,
+				"test")) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				put(sink, entry.getKey(), entry.getValue(), false);
+			}
+		}
+		byte[] tar = out.toByteArray();
+		assertEquals(0, tar.length % BLOCK);
+		Map<String, byte[]> read = readTar(tar);
+		assertEquals(List.copyOf(entries.keySet()), List.copyOf(read
+				.keySet()));
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			assertArrayEquals(entry.getValue(), read.get(entry.getKey()),
+					entry.getKey());
+		}
+	}
+
+	@Test
+	public void tarGzipsReports() throws IOException {
+		byte[] report = "Name,Size\nIMG_0001.JPG,1000\n".repeat(500)
+				.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputSink sink = new OutputSink.Tar(this.restore, out,
+				"test")) {
+			put(sink, "Report.csv", report, true);
+		}
+		Map<String, byte[]> read = readTar(out.toByteArray());
+		assertEquals(List.of("Report.csv.gz"), List.copyOf(read.keySet()));
+		byte[] gzip = read.get("Report.csv.gz");
+		assertTrue(gzip.length < report.length);
+		try (GZIPInputStream in = new GZIPInputStream(
+				new ByteArrayInputStream(gzip))) {
+			assertArrayEquals(report, in.readAllBytes());
+		}
+	}
+
+	@Test
+	public void tarStaysAlignedAfterAShortRead() throws IOException {
+		byte[] after = random(700, 4);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputSink sink = new OutputSink.Tar(this.restore, out,
+				"test")) {
+			/* Promises 1000 bytes, delivers 600. */
+			assertThrows(IOException.class, () -> sink.put("short", 1000,
+					new ByteArrayInputStream(random(600, 5)), null, false));
+			put(sink, "after", after, false);
+		}
+		Map<String, byte[]> read = readTar(out.toByteArray());
+		assertEquals(1000, read.get("short").length);
+		assertArrayEquals(after, read.get("after"));
+	}
+
+	@Test
+	public void putDigestsWhatItWrites() throws Exception {
+		byte[] data = random(100000, 6);
+		FileDigests digests = new FileDigests(List.of("MD5"));
+		try (OutputSink sink = new OutputSink.Tar(this.restore,
+				new ByteArrayOutputStream(), "test")) {
+			sink.put("a", data.length, new ByteArrayInputStream(data),
+					digests, false);
+		}
+		FileDigests expected = new FileDigests(List.of("MD5"));
+		expected.update(data, 0, data.length);
+		assertEquals(expected.get("MD5"), digests.get("MD5"));
+		assertEquals(data.length, digests.getLength());
+	}
+
+	@Test
+	public void zipRoundTrip() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		entries.put("Media/IMG_0001.JPG", random(70000, 7));
+		entries.put(UNICODE_NAME, random(100, 8));
+		entries.put("Report.csv", "a,b\n".repeat(1000).getBytes(
+				StandardCharsets.UTF_8));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputSink sink = new OutputSink.Zip(this.restore, out,
+				"test")) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				put(sink, entry.getKey(), entry.getValue(), entry.getKey()
+						.endsWith(".csv"));
+			}
+		}
+
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(
+				out.toByteArray()), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, byte[]> expected : entries.entrySet()) {
+				ZipEntry entry = in.getNextEntry();
+				assertEquals(expected.getKey(), entry.getName());
+				assertArrayEquals(expected.getValue(), in.readAllBytes());
+				byte[] utf8 = entry.getName().getBytes(
+						StandardCharsets.UTF_8);
+				if (utf8.length != entry.getName().length()) {
+					assertUnicodePath(entry.getExtra(), utf8);
+				}
+			}
+			assertNull(in.getNextEntry());
+		}
+	}
+
+	private static void put(OutputSink sink, String name, byte[] data,
+			boolean text) throws IOException {
+		sink.put(name, data.length, new ByteArrayInputStream(data), null,
+				text);
+	}
+
+	/* Info-ZIP Unicode Path: tag, size, version, CRC of name, name. */
+	private static void assertUnicodePath(byte[] extra, byte[] utf8) {
+		ByteBuffer field = ByteBuffer.wrap(extra).order(
+				ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x7075, field.getShort() & 0xffff);
+		assertEquals(5 + utf8.length, field.getShort());
+		assertEquals(1, field.get());
+		CRC32 crc = new CRC32();
+		crc.update(utf8);
+		assertEquals((int) crc.getValue(), field.getInt());
+		byte[] name = new byte[field.remaining()];
+		field.get(name);
+		assertArrayEquals(utf8, name);
+	}
+
+	private static void assertRecord(String key, String value) {
+		String record = OutputSink.Tar.paxRecord(key, value);
+		int length = Integer.parseInt(record.substring(0, record.indexOf(
+				' ')));
+		assertEquals(record.getBytes(StandardCharsets.UTF_8).length,
+				length, record);
+		assertTrue(record.endsWith(" " + key + "=" + value + "\n"));
+	}
+
+	private static void assertChecksum(byte[] header) {
+		long expected = Long.parseLong(field(header, 148, 8).trim(), 8);
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+		}
+		assertEquals(expected, sum);
+	}
+
+	/* A NUL terminated ASCII header field. */
+	private static String field(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset,
+				StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * Entry name to contents, with pax path and size applied. Checks
+	 * every header's checksum and the two zero blocks at the end.
+	 */
+	private static Map<String, byte[]> readTar(byte[] tar) {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		Map<String, String> pax = new LinkedHashMap<>();
+		int offset = 0;
+		while (true) {
+			byte[] header = Arrays.copyOfRange(tar, offset, offset + BLOCK);
+			offset += BLOCK;
+			if (Arrays.equals(header, new byte[BLOCK])) {
+				assertArrayEquals(new byte[BLOCK], Arrays.copyOfRange(tar,
+						offset, offset + BLOCK));
+				assertEquals(tar.length, offset + BLOCK);
+				return entries;
+			}
+			assertChecksum(header);
+			assertEquals("ustar", field(header, 257, 6));
+			long size = Long.parseLong(field(header, 124, 12), 8);
+			byte[] data = Arrays.copyOfRange(tar, offset, (int) (offset
+					+ size));
+			offset += (int) ((size + BLOCK - 1) / BLOCK * BLOCK);
+
+			if (header[156] == 'x') {
+				parsePax(new String(data, StandardCharsets.UTF_8), pax);
+				continue;
+			}
+			assertEquals('0', header[156]);
+			String name = pax.getOrDefault("path", field(header, 0, 100));
+			if (pax.containsKey("size")) {
+				assertEquals(Long.parseLong(pax.get("size")), data.length);
+			}
+			pax.clear();
+			entries.put(name, data);
+		}
+	}
+
+	private static void parsePax(String records, Map<String, String> pax) {
+		while (! records.isEmpty()) {
+			int space = records.indexOf(' ');
+			int length = Integer.parseInt(records.substring(0, space));
+			byte[] bytes = records.getBytes(StandardCharsets.UTF_8);
+			String record = new String(bytes, 0, length,
+					StandardCharsets.UTF_8);
+			assertTrue(record.endsWith("\n"), record);
+			int equals = record.indexOf('=');
+			pax.put(record.substring(space + 1, equals), record.substring(
+					equals + 1, record.length() - 1));
+			records = new String(bytes, length, bytes.length - length,
+					StandardCharsets.UTF_8);
+		}
+	}
+
+	private static byte[] random(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}